@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Copies a parsed tree without the state the interpreter caches on its
+// nodes: call sites, hoisted values, frame slots, call counts, compiled
+// code and the like. ModuleLoader keeps one tree per file for the whole
+// process, and each interpreter runs a copy of it, so no two runs ever
+// share a node's runtime state. Bodies the parser skipped stay skipped;
+// the copy parses its own the first time it runs them.
+final class AstCopier implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // Each Hoisted node sits in the tree where its expression was and is
+    // also listed on the loop it belongs to, so the list gets the copies.
+    private final Map<Expr.Hoisted, Expr.Hoisted> hoisted = new IdentityHashMap<>();
+
+    private AstCopier() {}
+
+    static List<Stmt> copy(List<Stmt> statements) {
+        return new AstCopier().statements(statements);
+    }
+
+    private List<Stmt> statements(List<Stmt> statements) {
+        List<Stmt> copied = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            copied.add(statement(statement));
+        }
+        return copied;
+    }
+
+    private Stmt statement(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr expression(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private List<Expr.Hoisted> hoisted(List<Expr.Hoisted> original) {
+        if (original == null) return null;
+        List<Expr.Hoisted> copied = new ArrayList<>(original.size());
+        for (Expr.Hoisted expr : original) {
+            copied.add((Expr.Hoisted) expression(expr));
+        }
+        return copied;
+    }
+
+    @Override
+    public Expr visitAccumulateVariableExpr(Expr.AccumulateVariable expr) {
+        return new Expr.AccumulateVariable(expr.name, expr.operator, expression(expr.value));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, expression(expr.value));
+    }
+
+    @Override
+    public Expr visitAssignShorthandExpr(Expr.AssignShorthand expr) {
+        return new Expr.AssignShorthand(expr.name, expr.operator, expression(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        return new Expr.Binary(expression(expr.left), expr.operator, expression(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(expression(argument));
+        }
+        return new Expr.Call(expression(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitCompareVariableExpr(Expr.CompareVariable expr) {
+        return new Expr.CompareVariable(expr.name, expr.operator, expr.other, expr.constant);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return new Expr.Grouping(expression(expr.expression));
+    }
+
+    @Override
+    public Expr visitHoistedExpr(Expr.Hoisted expr) {
+        Expr.Hoisted copied = hoisted.get(expr);
+        if (copied == null) {
+            copied = new Expr.Hoisted(expression(expr.expression));
+            hoisted.put(expr, copied);
+        }
+        return copied;
+    }
+
+    @Override
+    public Expr visitIncrementVariableExpr(Expr.IncrementVariable expr) {
+        return new Expr.IncrementVariable(expr.name, expr.operator, expr.other, expr.constant);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        return new Expr.Logical(expression(expr.left), expr.operator, expression(expr.right));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        return new Expr.Unary(expr.operator, expression(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return new Expr.Variable(expr.name);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(statements(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitDoWhileStmt(Stmt.DoWhile stmt) {
+        Stmt.DoWhile copied = new Stmt.DoWhile(stmt.keyword,
+                expression(stmt.condition), statement(stmt.body));
+        copied.hoisted = hoisted(stmt.hoisted);
+        return copied;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(expression(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return new Stmt.Function(stmt.name, stmt.params,
+                LazyBody.copy(stmt.body, body -> new AstCopier().statements(body)));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        return new Stmt.If(expression(stmt.condition),
+                statement(stmt.thenBranch), statement(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        Stmt.Import copied = new Stmt.Import(stmt.keyword, stmt.path);
+        copied.resolved = stmt.resolved;
+        return copied;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(expression(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, expression(stmt.value));
+    }
+
+    @Override
+    public Stmt visitTernaryStmt(Stmt.Ternary stmt) {
+        return new Stmt.Ternary(expression(stmt.condition),
+                statement(stmt.ifTrue), statement(stmt.ifFalse));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return new Stmt.Var(stmt.name, expression(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt.While copied = new Stmt.While(stmt.keyword,
+                expression(stmt.condition), statement(stmt.body));
+        copied.hoisted = hoisted(stmt.hoisted);
+        return copied;
+    }
+}
@@ -0,0 +1,7 @@
+import java.util.List;
+
+// A Lox function body translated to JVM bytecode by FunctionCompiler.
+interface CompiledFunction {
+    Object call(LoxFunction function, Interpreter interpreter, List<Object> arguments)
+            throws Throwable;
+}
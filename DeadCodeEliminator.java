@@ -0,0 +1,307 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Drops what a whole program can never use before it runs: function
+// declarations nothing calls, variables nothing reads or assigns, and
+// statements after a return. It only runs on complete scripts, since in
+// the REPL a later line may use anything. -Dlox.optimizeLog=true reports
+// each removal on stderr.
+//
+// Uses are found by name, ignoring scopes, so a name used anywhere keeps
+// every declaration of it. A function's body only counts once the
+// function itself is used, which also drops helpers that only unused
+// helpers call. A variable initializer only goes away with its variable
+// when evaluating it could not call, assign or fail; otherwise it stays
+// as an expression statement.
+final class DeadCodeEliminator {
+    private static final boolean LOG = Boolean.getBoolean("lox.optimizeLog");
+
+    private final Set<String> used = new HashSet<>();
+    private final Deque<String> pending = new ArrayDeque<>();
+    private final Map<String, List<Stmt.Function>> functions = new HashMap<>();
+    private final Map<String, List<Expr>> initializers = new HashMap<>();
+
+    private DeadCodeEliminator() {}
+
+    static List<Stmt> eliminate(List<Stmt> statements) {
+        if (!Optimizer.ENABLED || imports(statements)) return statements;
+
+        DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        eliminator.mark(statements);
+        while (!eliminator.pending.isEmpty()) {
+            eliminator.markUses(eliminator.pending.pop());
+        }
+        List<Stmt> swept = eliminator.sweep(statements, false);
+        // Unparsed bodies keep the eliminator until they are swept.
+        eliminator.functions.clear();
+        eliminator.initializers.clear();
+        return swept;
+    }
+
+    // Imported code runs on top of the program's globals and can use any
+    // of them, so a program that imports keeps everything.
+    private static boolean imports(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Import) return true;
+        }
+        return false;
+    }
+
+    private void use(String name) {
+        if (used.add(name)) pending.push(name);
+    }
+
+    private void markUses(String name) {
+        List<Stmt.Function> declarations = functions.remove(name);
+        if (declarations != null) {
+            for (Stmt.Function function : declarations) mark(function.body);
+        }
+        List<Expr> values = initializers.remove(name);
+        if (values != null) {
+            for (Expr value : values) mark(value);
+        }
+    }
+
+    private void mark(List<Stmt> statements) {
+        if (statements instanceof LazyBody lazy && !lazy.isParsed()) {
+            for (String name : lazy.identifiers()) use(name);
+            return;
+        }
+        for (Stmt statement : statements) mark(statement);
+    }
+
+    private void mark(Stmt stmt) {
+        if (stmt instanceof Stmt.Function function) {
+            if (used.contains(function.name.lexeme)) {
+                mark(function.body);
+            } else {
+                functions.computeIfAbsent(function.name.lexeme, name -> new ArrayList<>()).add(function);
+            }
+        } else if (stmt instanceof Stmt.Var var) {
+            if (var.initializer == null) return;
+            if (used.contains(var.name.lexeme) || !isInert(var.initializer)) {
+                mark(var.initializer);
+            } else {
+                initializers.computeIfAbsent(var.name.lexeme, name -> new ArrayList<>()).add(var.initializer);
+            }
+        } else if (stmt instanceof Stmt.Expression expression) {
+            mark(expression.expression);
+        } else if (stmt instanceof Stmt.Print print) {
+            mark(print.expression);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            mark(returnStmt.value);
+        } else if (stmt instanceof Stmt.Block block) {
+            mark(block.statements);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            mark(ifStmt.condition);
+            mark(ifStmt.thenBranch);
+            mark(ifStmt.elseBranch);
+        } else if (stmt instanceof Stmt.Ternary ternary) {
+            mark(ternary.condition);
+            mark(ternary.ifTrue);
+            mark(ternary.ifFalse);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            mark(whileStmt.condition);
+            mark(whileStmt.body);
+        } else if (stmt instanceof Stmt.DoWhile doWhile) {
+            mark(doWhile.condition);
+            mark(doWhile.body);
+        }
+    }
+
+    private void mark(Expr expr) {
+        if (expr instanceof Expr.Variable variable) {
+            use(variable.name.lexeme);
+        } else if (expr instanceof Expr.Assign assign) {
+            use(assign.name.lexeme);
+            mark(assign.value);
+        } else if (expr instanceof Expr.AssignShorthand shorthand) {
+            use(shorthand.name.lexeme);
+            mark(shorthand.value);
+        } else if (expr instanceof Expr.Call call) {
+            mark(call.callee);
+            for (Expr argument : call.arguments) mark(argument);
+        } else if (expr instanceof Expr.Binary binary) {
+            mark(binary.left);
+            mark(binary.right);
+        } else if (expr instanceof Expr.Logical logical) {
+            mark(logical.left);
+            mark(logical.right);
+        } else if (expr instanceof Expr.Unary unary) {
+            mark(unary.right);
+        } else if (expr instanceof Expr.Grouping grouping) {
+            mark(grouping.expression);
+        } else if (expr instanceof Expr.Hoisted hoisted) {
+            mark(hoisted.expression);
+        } else if (expr instanceof Expr.CompareVariable compare) {
+            use(compare.name.lexeme);
+            if (compare.other != null) use(compare.other.lexeme);
+        } else if (expr instanceof Expr.IncrementVariable increment) {
+            use(increment.name.lexeme);
+            if (increment.other != null) use(increment.other.lexeme);
+        } else if (expr instanceof Expr.AccumulateVariable accumulate) {
+            use(accumulate.name.lexeme);
+            mark(accumulate.value);
+        }
+    }
+
+    private List<Stmt> sweep(List<Stmt> statements, boolean inFunction) {
+        List<Stmt> kept = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            if (statement instanceof Stmt.Function function && !used.contains(function.name.lexeme)) {
+                if (LOG) log(function.name, "removed unused function '" + function.name.lexeme + "'");
+                continue;
+            }
+            if (statement instanceof Stmt.Var var && !used.contains(var.name.lexeme)) {
+                if (var.initializer == null || isInert(var.initializer)) {
+                    if (LOG) log(var.name, "removed unused variable '" + var.name.lexeme + "'");
+                    continue;
+                }
+                if (LOG) {
+                    log(var.name, "removed unused variable '" + var.name.lexeme +
+                            "', kept its initializer");
+                }
+                statement = new Stmt.Expression(var.initializer);
+            }
+
+            Stmt swept = sweep(statement, inFunction);
+            kept.add(swept);
+            if (inFunction && alwaysReturns(swept) && i + 1 < statements.size()) {
+                if (LOG) {
+                    log(returnToken(swept), "removed " + (statements.size() - i - 1) +
+                            " unreachable statement(s) after return");
+                }
+                break;
+            }
+        }
+        return kept;
+    }
+
+    private Stmt sweep(Stmt stmt, boolean inFunction) {
+        if (stmt instanceof Stmt.Function function) {
+            return new Stmt.Function(function.name, function.params,
+                    LazyBody.map(function.body, body -> sweep(body, true)));
+        } else if (stmt instanceof Stmt.Block block) {
+            return new Stmt.Block(sweep(block.statements, inFunction));
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            return new Stmt.If(ifStmt.condition, sweep(ifStmt.thenBranch, inFunction),
+                    sweep(ifStmt.elseBranch, inFunction));
+        } else if (stmt instanceof Stmt.Ternary ternary) {
+            return new Stmt.Ternary(ternary.condition, sweep(ternary.ifTrue, inFunction),
+                    sweep(ternary.ifFalse, inFunction));
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            return new Stmt.While(whileStmt.keyword, whileStmt.condition,
+                    sweep(whileStmt.body, inFunction));
+        } else if (stmt instanceof Stmt.DoWhile doWhile) {
+            return new Stmt.DoWhile(doWhile.keyword, doWhile.condition,
+                    sweep(doWhile.body, inFunction));
+        }
+        return stmt;
+    }
+
+    private static boolean alwaysReturns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block block) {
+            for (Stmt statement : block.statements) {
+                if (alwaysReturns(statement)) return true;
+            }
+            return false;
+        }
+        if (stmt instanceof Stmt.If ifStmt) {
+            return alwaysReturns(ifStmt.thenBranch) && alwaysReturns(ifStmt.elseBranch);
+        }
+        if (stmt instanceof Stmt.Ternary ternary) {
+            return alwaysReturns(ternary.ifTrue) && alwaysReturns(ternary.ifFalse);
+        }
+        return false;
+    }
+
+    // The first return in a statement that always returns, for the log.
+    private static Token returnToken(Stmt stmt) {
+        if (stmt instanceof Stmt.Return returnStmt) return returnStmt.keyword;
+        if (stmt instanceof Stmt.Block block) {
+            for (Stmt statement : block.statements) {
+                if (alwaysReturns(statement)) return returnToken(statement);
+            }
+        }
+        if (stmt instanceof Stmt.If ifStmt) return returnToken(ifStmt.thenBranch);
+        if (stmt instanceof Stmt.Ternary ternary) return returnToken(ternary.ifTrue);
+        return null;
+    }
+
+    // Whether evaluating expr can have no effect at all: no calls, no
+    // assignments and no runtime errors.
+    private static boolean isInert(Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Grouping grouping) return isInert(grouping.expression);
+        if (expr instanceof Expr.Logical logical) {
+            return isInert(logical.left) && isInert(logical.right);
+        }
+        if (expr instanceof Expr.Unary unary) {
+            if (!isInert(unary.right)) return false;
+            return unary.operator.type == TokenType.BANG || type(unary.right) == Type.NUMBER;
+        }
+        if (expr instanceof Expr.Binary binary) {
+            if (!isInert(binary.left) || !isInert(binary.right)) return false;
+            Type left = type(binary.left);
+            Type right = type(binary.right);
+            switch (binary.operator.type) {
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    return true;
+                case DOT_PLUS:
+                    return left != Type.NIL && left != null && right != Type.NIL && right != null;
+                case PLUS:
+                    return left == right && (left == Type.NUMBER || left == Type.STRING);
+                default:
+                    return left == Type.NUMBER && right == Type.NUMBER;
+            }
+        }
+        return false;
+    }
+
+    private enum Type { NUMBER, STRING, BOOLEAN, NIL }
+
+    // The type of an inert expression's value, or null if it depends.
+    private static Type type(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            if (literal.value == null) return Type.NIL;
+            if (LoxNumber.isNumber(literal.value)) return Type.NUMBER;
+            if (literal.value instanceof String) return Type.STRING;
+            if (literal.value instanceof Boolean) return Type.BOOLEAN;
+            return null;
+        }
+        if (expr instanceof Expr.Grouping grouping) return type(grouping.expression);
+        if (expr instanceof Expr.Unary unary) {
+            return unary.operator.type == TokenType.BANG ? Type.BOOLEAN : Type.NUMBER;
+        }
+        if (expr instanceof Expr.Binary binary) {
+            switch (binary.operator.type) {
+                case EQUAL_EQUAL: case BANG_EQUAL:
+                case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                    return Type.BOOLEAN;
+                case DOT_PLUS:
+                    return Type.STRING;
+                case PLUS:
+                    return type(binary.left);
+                case SLASH:
+                    // Division by zero gives nil.
+                    return null;
+                default:
+                    return Type.NUMBER;
+            }
+        }
+        return null;
+    }
+
+    private static void log(Token token, String message) {
+        System.err.println("[dce] line " + token.line + ": " + message);
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares visitor dispatch with instanceof-pattern dispatch on one
+// script. Each mode runs in a forked JVM of its own, so the two never
+// share a profile, and tiered compilation of Lox functions is turned off
+// so the interpreter loop is what gets measured.
+//
+//   java -cp <classes> DispatchBenchmark <script> [warmups] [iterations]
+public class DispatchBenchmark {
+    private static final String[] MODES = {"visitor", "pattern"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("--fork")) {
+            measure(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: DispatchBenchmark <script> [warmups] [iterations]");
+            System.exit(64);
+        }
+
+        String warmups = args.length > 1 ? args[1] : "5";
+        String iterations = args.length > 2 ? args[2] : "10";
+        for (String mode : MODES) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dlox.dispatch=" + mode,
+                    "-Dlox.compileThreshold=" + Integer.MAX_VALUE,
+                    "DispatchBenchmark", "--fork", args[0], warmups, iterations));
+            Process process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                System.out.println(mode + ": " + reader.readLine());
+            }
+            process.waitFor();
+        }
+    }
+
+    private static void measure(String path, int warmups, int iterations) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        if (Lox.hadError) System.exit(65);
+
+        long[] times = new long[iterations];
+        for (int i = -warmups; i < iterations; i++) {
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(new LoxOutput(OutputStream.nullOutputStream(), LoxOutput.DEFAULT_BUFFER_SIZE));
+            long start = System.nanoTime();
+            interpreter.interpret(statements);
+            long elapsed = System.nanoTime() - start;
+            interpreter.closeResources();
+            if (i >= 0) times[i] = elapsed;
+        }
+
+        Arrays.sort(times);
+        System.out.printf("median %.2f ms, min %.2f ms, max %.2f ms over %d runs%n",
+                times[iterations / 2] / 1e6, times[0] / 1e6,
+                times[iterations - 1] / 1e6, iterations);
+    }
+}
@@ -1,9 +1,27 @@
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Most scopes hold a handful of variables, which a linear scan over two
+    // small arrays finds faster than hashing does. A scope that outgrows
+    // them, like the globals, moves its variables into a map.
+    private static final int MAX_SLOTS = 8;
+    // What lookUp() returns for a name the scope itself does not declare.
+    private static final Object NONE = new Object();
+
+    // Only changed when the interpreter recycles a frame nothing captured.
+    Environment enclosing;
+    private final String[] names = new String[MAX_SLOTS];
+    private final Object[] slots = new Object[MAX_SLOTS];
+    private int size = 0;
+    private Map<String, Object> values;
+    // The statements running in this scope while they run, the only ones
+    // that can still declare variables in it.
+    List<Stmt> running;
+
     Environment() {
         enclosing = null;
     }
@@ -11,13 +29,75 @@ class Environment {
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
     }
+
+    // A variable a closure has captured. Its scope keeps the Cell in place
+    // of the value, so the scope and every closure over it share one slot.
+    static final class Cell {
+        Object value;
+
+        Cell(Object value) {
+            this.value = value;
+        }
+    }
+
+    // Empties a frame so its scope can run in it again.
+    void reset() {
+        Arrays.fill(slots, 0, size, null);
+        size = 0;
+        values = null;
+        enclosing = null;
+    }
+
     void define(String name, Object value) {
-        values.put(name, value);
+        Object previous = lookUp(name);
+        if (previous instanceof Cell) {
+            // Redeclaring a captured variable must not cut the closures off.
+            ((Cell) previous).value = value;
+            return;
+        }
+        put(name, value);
+    }
+
+    void defineCell(String name, Cell cell) {
+        put(name, cell);
+    }
+
+    boolean isDefined(String name) {
+        return lookUp(name) != NONE;
+    }
+
+    // Whether a statement still to run here could declare the name, which
+    // the scope does not hold yet.
+    boolean mayDeclare(String name) {
+        if (running == null) return false;
+        for (Stmt statement : running) {
+            if (statement instanceof Stmt.Var var && var.name.lexeme.equals(name)) return true;
+            if (statement instanceof Stmt.Function function
+                    && function.name.lexeme.equals(name)) return true;
+        }
+        return false;
+    }
+
+    // Boxes the variable in the innermost non-global scope that declares it
+    // and returns its cell, or null if only the globals could hold it.
+    Cell capture(String name) {
+        for (Environment scope = this; scope.enclosing != null; scope = scope.enclosing) {
+            Object value = scope.lookUp(name);
+            if (value == NONE) continue;
+            if (value instanceof Cell) return (Cell) value;
+
+            Cell cell = new Cell(value);
+            scope.put(name, cell);
+            return cell;
+        }
+        return null;
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Object value = lookUp(name.lexeme);
+        if (value != NONE) {
+            if (value instanceof Cell) return ((Cell) value).value;
+            return value;
         }
 
         if (enclosing != null) return enclosing.get(name);
@@ -27,8 +107,13 @@ class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        Object current = lookUp(name.lexeme);
+        if (current instanceof Cell) {
+            ((Cell) current).value = value;
+            return;
+        }
+        if (current != NONE) {
+            put(name.lexeme, value);
             return;
         }
 
@@ -41,4 +126,63 @@ class Environment {
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-}                                                            
\ No newline at end of file
+    // Calls action with each variable the scope itself declares.
+    void forEach(BiConsumer<String, Object> action) {
+        forEachSlot((name, value) ->
+                action.accept(name, value instanceof Cell ? ((Cell) value).value : value));
+    }
+
+    // Like forEach(), but a captured variable comes as its Cell.
+    void forEachSlot(BiConsumer<String, Object> action) {
+        if (values != null) {
+            values.forEach(action);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            action.accept(names[i], slots[i]);
+        }
+    }
+
+    // The value or Cell the scope itself holds for the name, or NONE.
+    private Object lookUp(String name) {
+        if (values != null) {
+            Object value = values.get(name);
+            return value != null || values.containsKey(name) ? value : NONE;
+        }
+
+        int index = indexOf(name);
+        return index >= 0 ? slots[index] : NONE;
+    }
+
+    private int indexOf(String name) {
+        int hash = name.hashCode();
+        for (int i = size - 1; i >= 0; i--) {
+            String candidate = names[i];
+            if (candidate == name || (candidate.hashCode() == hash && candidate.equals(name))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void put(String name, Object value) {
+        if (values != null) {
+            values.put(name, value);
+            return;
+        }
+
+        int index = indexOf(name);
+        if (index >= 0) {
+            slots[index] = value;
+        } else if (size < MAX_SLOTS) {
+            names[size] = name;
+            slots[size++] = value;
+        } else {
+            values = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                values.put(names[i], slots[i]);
+            }
+            values.put(name, value);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides whether a scope can outlive the code that runs in it. Lox has
+// no function expressions, so the only way a scope escapes is a function
+// declared somewhere inside it closing over it. Scopes that declare no
+// functions get a slot number, and each interpreter keeps a FramePool in
+// that slot, so their frames are recycled as soon as they exit. The
+// pools stay out of the tree because one tree can run in several
+// interpreters at once.
+final class EscapeAnalysis implements Stmt.Visitor<Boolean> {
+    private static final EscapeAnalysis INSTANCE = new EscapeAnalysis();
+    private static final AtomicInteger lastSlot = new AtomicInteger();
+
+    private EscapeAnalysis() {}
+
+    // The pool to take the block's frames from, or null if they may escape.
+    static FramePool framePool(Interpreter interpreter, Stmt.Block block) {
+        if (block.mayEscape == null) {
+            // The slot goes in first. If two threads analyse the block at
+            // once, each just uses the slot it sees; one still reading 0
+            // makes its frames without a pool.
+            boolean mayEscape = INSTANCE.any(block.statements);
+            if (!mayEscape) block.frameSlot = lastSlot.incrementAndGet();
+            block.mayEscape = mayEscape;
+        }
+        return interpreter.framePool(block.frameSlot);
+    }
+
+    // The same for the frames of calls to the function.
+    static FramePool framePool(Interpreter interpreter, Stmt.Function function) {
+        if (function.mayEscape == null) {
+            boolean mayEscape = INSTANCE.any(function.body);
+            if (!mayEscape) function.frameSlot = lastSlot.incrementAndGet();
+            function.mayEscape = mayEscape;
+        }
+        return interpreter.framePool(function.frameSlot);
+    }
+
+    private boolean any(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement.accept(this)) return true;
+        }
+        return false;
+    }
+
+    private boolean any(Stmt stmt) {
+        return stmt != null && stmt.accept(this);
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        return any(stmt.statements);
+    }
+
+    @Override
+    public Boolean visitDoWhileStmt(Stmt.DoWhile stmt) {
+        return any(stmt.body);
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return any(stmt.thenBranch) || any(stmt.elseBranch);
+    }
+
+    @Override
+    public Boolean visitImportStmt(Stmt.Import stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitTernaryStmt(Stmt.Ternary stmt) {
+        return any(stmt.ifTrue) || any(stmt.ifFalse);
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return any(stmt.body);
+    }
+}
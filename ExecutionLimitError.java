@@ -0,0 +1,8 @@
+// Raised when a run has used up its step budget or its time. It is
+// reported like any other runtime error, but an embedder running untrusted
+// scripts can tell a runaway script from a failing one by its type.
+class ExecutionLimitError extends RuntimeError {
+    ExecutionLimitError(Token token, String message) {
+        super(token, message);
+    }
+}
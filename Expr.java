@@ -1,52 +1,58 @@
 import java.util.List;
 
-abstract class Expr {
+// Generated by GenerateAst. Edit the node list there, not this file.
+abstract sealed class Expr {
   interface Visitor<R> {
+    R visitAccumulateVariableExpr(Expr.AccumulateVariable expr);
+    R visitAssignExpr(Expr.Assign expr);
+    R visitAssignShorthandExpr(Expr.AssignShorthand expr);
     R visitBinaryExpr(Expr.Binary expr);
+    R visitCallExpr(Expr.Call expr);
+    R visitCompareVariableExpr(Expr.CompareVariable expr);
     R visitGroupingExpr(Expr.Grouping expr);
+    R visitHoistedExpr(Expr.Hoisted expr);
+    R visitIncrementVariableExpr(Expr.IncrementVariable expr);
     R visitLiteralExpr(Expr.Literal expr);
+    R visitLogicalExpr(Expr.Logical expr);
     R visitUnaryExpr(Expr.Unary expr);
     R visitVariableExpr(Expr.Variable expr);
-    R visitAssignExpr(Expr.Assign expr);
-    R visitAssignShorthandExpr(Expr.AssignShorthand expr);
-    R visitLogicalExpr(Expr.Logical expr);
-    R visitCallExpr(Expr.Call expr);
   }
 
-  static class Call extends Expr {
-    Call(Expr callee, Token paren, List<Expr> arguments) {
-      this.callee = callee;
-      this.paren = paren;
-      this.arguments = arguments;
+  // Fused by the Optimizer: name = name operator value.
+  static final class AccumulateVariable extends Expr {
+    AccumulateVariable(Token name, Token operator, Expr value) {
+      this.name = name;
+      this.operator = operator;
+      this.value = value;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitCallExpr(this);
+      return visitor.visitAccumulateVariableExpr(this);
     }
 
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    final Token name;
+    final Token operator;
+    final Expr value;
   }
 
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
     }
 
-      @Override
+    @Override
     <R> R accept(Visitor<R> visitor) {
-        return visitor.visitAssignExpr(this);
-      }
+      return visitor.visitAssignExpr(this);
+    }
 
-      final Token name;
-      final Expr value;
+    final Token name;
+    final Expr value;
   }
 
-  static class AssignShorthand extends Expr {
-    AssignShorthand(Token name, Token operator,Expr value) {
+  static final class AssignShorthand extends Expr {
+    AssignShorthand(Token name, Token operator, Expr value) {
       this.name = name;
       this.operator = operator;
       this.value = value;
@@ -58,15 +64,73 @@ abstract class Expr {
     }
 
     final Token name;
+    final Token operator;
     final Expr value;
+  }
+
+  static final class Binary extends Expr {
+    Binary(Expr left, Token operator, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBinaryExpr(this);
+    }
+
+    final Expr left;
     final Token operator;
+    final Expr right;
   }
 
-  static class Grouping extends Expr {
+  static final class Call extends Expr {
+    Call(Expr callee, Token paren, List<Expr> arguments) {
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    final Expr callee;
+    final Token paren;
+    final List<Expr> arguments;
+
+    // Linked lazily on the first call.
+    LoxCallSite site;
+  }
+
+  // Fused by the Optimizer: name compared to the variable other, or to constant if other is null.
+  static final class CompareVariable extends Expr {
+    CompareVariable(Token name, Token operator, Token other, Object constant) {
+      this.name = name;
+      this.operator = operator;
+      this.other = other;
+      this.constant = constant;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareVariableExpr(this);
+    }
+
+    final Token name;
+    final Token operator;
+    final Token other;
+    final Object constant;
+  }
+
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
       this.expression = expression;
     }
 
+    @Override
     <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
@@ -74,33 +138,57 @@ abstract class Expr {
     final Expr expression;
   }
 
-  static class Literal extends Expr {
-    Literal(Object value) {
-      this.value = value;
+  static final class Hoisted extends Expr {
+    Hoisted(Expr expression) {
+      this.expression = expression;
     }
 
+    @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitLiteralExpr(this);
+      return visitor.visitHoistedExpr(this);
     }
 
-    final Object value;
+    final Expr expression;
+
+    // Kept until the loop the Optimizer hoisted it out of starts again.
+    boolean cached;
+    Object value;
   }
 
-  static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+  // Fused by the Optimizer: name +=, -=, ++ or -- by the variable other, or by constant if other is null.
+  static final class IncrementVariable extends Expr {
+    IncrementVariable(Token name, Token operator, Token other, Object constant) {
+      this.name = name;
       this.operator = operator;
-      this.right = right;
+      this.other = other;
+      this.constant = constant;
     }
 
+    @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitUnaryExpr(this);
+      return visitor.visitIncrementVariableExpr(this);
     }
 
+    final Token name;
     final Token operator;
-    final Expr right;
+    final Token other;
+    final Object constant;
   }
 
-  static class Logical extends Expr {
+  static final class Literal extends Expr {
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLiteralExpr(this);
+    }
+
+    final Object value;
+  }
+
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -117,34 +205,33 @@ abstract class Expr {
     final Expr right;
   }
 
-  static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
-      this.left = left;
+  static final class Unary extends Expr {
+    Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
     }
 
+    @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitBinaryExpr(this);
+      return visitor.visitUnaryExpr(this);
     }
 
-    final Expr left;
     final Token operator;
     final Expr right;
   }
 
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
       this.name = name;
     }
 
-      @Override
+    @Override
     <R> R accept(Visitor<R> visitor) {
-        return visitor.visitVariableExpr(this);
-      }
-
-      final Token name;
+      return visitor.visitVariableExpr(this);
     }
 
+    final Token name;
+  }
+
   abstract <R> R accept(Visitor<R> visitor);
-}
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+// Spare frames for one block or function whose scope EscapeAnalysis
+// showed no closure can capture. A frame goes back to the pool when its
+// scope exits; recursion simply takes several out at once.
+final class FramePool {
+    private static final int MAX_FRAMES = 16;
+
+    private final Environment[] frames = new Environment[MAX_FRAMES];
+    private int size = 0;
+
+    // Whether acquire() has to make a new frame.
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Environment acquire(Environment enclosing) {
+        if (size == 0) return new Environment(enclosing);
+        Environment frame = frames[--size];
+        frames[size] = null;
+        frame.enclosing = enclosing;
+        return frame;
+    }
+
+    void release(Environment frame) {
+        if (size == MAX_FRAMES) return;
+        frame.reset();
+        frames[size++] = frame;
+    }
+}
@@ -0,0 +1,569 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs Lox calls on frames kept in an array on the heap instead of on the
+// Java stack, so recursion is as deep as -Dlox.stackSize megabytes of
+// frames allow. Calls start out in the recursive evaluator, compiled or
+// not, which is faster; LoxFunction hands a call over to the FrameStack
+// once the Java calls under way are ENTRY_DEPTH deep, and every call made
+// from there on that is not a native gets a frame here.
+//
+// A function runs here as a list of instructions over an operand stack,
+// made the first time it runs here. Only the statements and expressions
+// that contain a call are broken up into instructions; everything else
+// is handed to the Interpreter whole, so its Java stack is no deeper than
+// the expression it evaluates.
+final class FrameStack {
+    // How many Lox calls deep the Java stack gets before calls move here.
+    static final int ENTRY_DEPTH = 100;
+    // -Dlox.stackSize, in megabytes, caps how much the frames may take.
+    // Each is charged FRAME bytes, about what it holds with its scope.
+    private static final long FRAME = 240;
+    private static final int MAX_FRAMES =
+            (int) Math.min(Integer.MAX_VALUE, (Long.getLong("lox.stackSize", 64) << 20) / FRAME);
+
+    private static final int EVALUATE = 0;
+    private static final int EXECUTE = 1;
+    private static final int CONSTANT = 2;
+    private static final int GET = 3;
+    private static final int ASSIGN = 4;
+    private static final int SHORTHAND = 5;
+    private static final int BINARY = 6;
+    private static final int UNARY = 7;
+    private static final int CALL = 8;
+    private static final int RETURN = 9;
+    private static final int DEFINE = 10;
+    private static final int EXPRESSION = 11;
+    private static final int PRINT = 12;
+    private static final int JUMP = 13;
+    private static final int JUMP_IF_FALSE = 14;
+    private static final int JUMP_IF_TRUE = 15;
+    private static final int OR = 16;
+    private static final int AND = 17;
+    private static final int ENTER = 18;
+    private static final int EXIT = 19;
+    private static final int CLEAR = 20;
+    private static final int STEP = 21;
+
+    private static final class Instruction {
+        final int op;
+        // The node the instruction runs or comes from.
+        final Object node;
+        // The token errors are reported at.
+        final Token token;
+        int target;
+
+        Instruction(int op, Object node, Token token) {
+            this.op = op;
+            this.node = node;
+            this.token = token;
+        }
+    }
+
+    // The instructions for one function body.
+    static final class Code {
+        private final Instruction[] instructions;
+
+        private Code(Instruction[] instructions) {
+            this.instructions = instructions;
+        }
+    }
+
+    private static final class Frame {
+        Instruction[] code;
+        int pc;
+        Object[] stack = new Object[8];
+        int sp;
+        // The call's own scope, and the innermost block scope in it.
+        Environment base;
+        Environment environment;
+        FramePool frames;
+        // The blocks entered and not yet left, innermost last.
+        Stmt.Block[] blocks = new Stmt.Block[4];
+        int openBlocks;
+        // Where to cache the result, for a call Memoized missed.
+        Memoized memo;
+        Object[] arguments;
+
+        void push(Object value) {
+            if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+            stack[sp++] = value;
+        }
+
+        Object pop() {
+            Object value = stack[--sp];
+            stack[sp] = null;
+            return value;
+        }
+    }
+
+    private final Interpreter interpreter;
+    // Frame objects are reused; the ones in use are frames[0..top).
+    private Frame[] frames = new Frame[16];
+    private int top = 0;
+
+    FrameStack(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Calls function here and runs until it returns. Calls from Java can
+    // nest, say through an import, each run finishing its own frames.
+    Object run(LoxFunction function, Object[] arguments) {
+        int bottom = top;
+        Environment caller = interpreter.environment();
+        int scopes = interpreter.scopeDepth();
+        try {
+            push(function, arguments, null);
+            return execute(bottom, caller);
+        } finally {
+            if (top > bottom) abandon(bottom);
+            interpreter.unwindScopes(scopes, caller);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object execute(int bottom, Environment caller) {
+        Frame frame = frames[top - 1];
+        while (true) {
+            Instruction instruction = frame.code[frame.pc++];
+            Environment environment = frame.environment;
+            switch (instruction.op) {
+                case EVALUATE:
+                    frame.push(interpreter.evaluate((Expr) instruction.node));
+                    break;
+                case EXECUTE:
+                    try {
+                        interpreter.execute((Stmt) instruction.node);
+                    } catch (Return returnValue) {
+                        frame = returnFrom(frame, returnValue.value, bottom, caller);
+                        if (frame == null) return returnValue.value;
+                    }
+                    break;
+                case RETURN: {
+                    Object value = frame.pop();
+                    frame = returnFrom(frame, value, bottom, caller);
+                    if (frame == null) return value;
+                    break;
+                }
+                case CONSTANT:
+                    frame.push(instruction.node);
+                    break;
+                case GET:
+                    frame.push(environment.get(instruction.token));
+                    break;
+                case ASSIGN:
+                    environment.assign(instruction.token, frame.stack[frame.sp - 1]);
+                    break;
+                case SHORTHAND: {
+                    Expr.AssignShorthand expr = (Expr.AssignShorthand) instruction.node;
+                    Object rightHandSide = frame.pop();
+                    Object value = environment.get(expr.name);
+                    Object finalValue = interpreter.shorthand(expr.name, expr.operator,
+                            value, rightHandSide);
+                    if (finalValue != null) environment.assign(expr.name, finalValue);
+                    frame.push(finalValue);
+                    break;
+                }
+                case BINARY: {
+                    Object right = frame.pop();
+                    Object left = frame.pop();
+                    frame.push(interpreter.binary(instruction.token, left, right));
+                    break;
+                }
+                case UNARY:
+                    frame.push(interpreter.unary(instruction.token, frame.pop()));
+                    break;
+                case CALL: {
+                    Frame callee = call(frame, (Expr.Call) instruction.node);
+                    if (callee != null) frame = callee;
+                    break;
+                }
+                case DEFINE:
+                    environment.define(instruction.token.lexeme, frame.pop());
+                    break;
+                case EXPRESSION:
+                    interpreter.expressionResult(frame.pop());
+                    break;
+                case PRINT:
+                    interpreter.print(frame.pop());
+                    break;
+                case JUMP:
+                    frame.pc = instruction.target;
+                    break;
+                case JUMP_IF_FALSE:
+                    if (!interpreter.isTruthy(frame.pop())) frame.pc = instruction.target;
+                    break;
+                case JUMP_IF_TRUE:
+                    if (interpreter.isTruthy(frame.pop())) frame.pc = instruction.target;
+                    break;
+                case OR:
+                    if (interpreter.isTruthy(frame.stack[frame.sp - 1])) {
+                        frame.pc = instruction.target;
+                    } else {
+                        frame.pop();
+                    }
+                    break;
+                case AND:
+                    if (!interpreter.isTruthy(frame.stack[frame.sp - 1])) {
+                        frame.pc = instruction.target;
+                    } else {
+                        frame.pop();
+                    }
+                    break;
+                case ENTER:
+                    enter(frame, (Stmt.Block) instruction.node);
+                    break;
+                case EXIT:
+                    exit(frame);
+                    break;
+                case CLEAR:
+                    Interpreter.clear((List<Expr.Hoisted>) instruction.node);
+                    break;
+                case STEP:
+                    interpreter.step(instruction.token);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown instruction " + instruction.op);
+            }
+        }
+    }
+
+    // Makes the call the way LoxCallSite would. Returns the new frame for a
+    // function that runs here, or null when the result is already pushed.
+    private Frame call(Frame frame, Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = arguments.length - 1; i >= 0; i--) {
+            arguments[i] = frame.pop();
+        }
+        Object callee = frame.pop();
+        if (expr.site == null) expr.site = new LoxCallSite(expr.paren);
+
+        LoxFunction function = null;
+        Memoized memo = null;
+        if (callee instanceof LoxFunction loxFunction) {
+            function = loxFunction;
+            memo = loxFunction.memoized();
+        } else if (callee instanceof Memoized memoized
+                && memoized.function() instanceof LoxFunction loxFunction) {
+            function = loxFunction;
+            memo = memoized;
+        }
+        if (function == null) {
+            frame.push(expr.site.call(callee, interpreter, arguments));
+            return null;
+        }
+
+        expr.site.check(callee, arguments.length);
+        if (memo != null) {
+            Object result = memo.cached(arguments);
+            if (result != Memoized.MISS) {
+                frame.push(result);
+                return null;
+            }
+        }
+        return push(function, arguments, memo);
+    }
+
+    // Does what LoxFunction.invoke() does before running the body.
+    private Frame push(LoxFunction function, Object[] arguments, Memoized memo) {
+        Stmt.Function declaration = function.declaration();
+        interpreter.step(declaration.name);
+        if (top == MAX_FRAMES) throw function.stackOverflow();
+        Code code = code(declaration);
+
+        FramePool pool = EscapeAnalysis.framePool(interpreter, declaration);
+        if (pool == null || pool.isEmpty()) interpreter.allocate(MemoryMeter.ENVIRONMENT);
+        Environment environment = pool != null
+                ? pool.acquire(function.closure()) : new Environment(function.closure());
+        for (int i = 0; i < arguments.length; i++) {
+            environment.define(declaration.params.get(i).lexeme, arguments[i]);
+        }
+
+        if (top == frames.length) frames = Arrays.copyOf(frames, top * 2);
+        Frame frame = frames[top];
+        if (frame == null) frames[top] = frame = new Frame();
+        top++;
+        frame.code = code.instructions;
+        frame.pc = 0;
+        frame.base = environment;
+        frame.environment = environment;
+        frame.frames = pool;
+        frame.memo = memo;
+        frame.arguments = memo != null ? arguments : null;
+        interpreter.enterScope(environment, declaration.body);
+        return frame;
+    }
+
+    // Hands value back from the returning frame: pops it, remembers the
+    // result if the call is memoized, and pushes the value on the caller.
+    // Returns the caller, or null if the value goes back out of run().
+    private Frame returnFrom(Frame returning, Object value, int bottom, Environment caller) {
+        Frame frame = pop(bottom, caller);
+        if (returning.memo != null) {
+            returning.memo.remember(returning.arguments, value, interpreter);
+        }
+        returning.memo = null;
+        returning.arguments = null;
+        if (frame == null) return null;
+        frame.push(value);
+        interpreter.checkMemory(frame.code[frame.pc - 1].token);
+        return frame;
+    }
+
+    // Leaves the top frame's scopes and returns the frame under it, or null
+    // if that belongs to whoever called run().
+    private Frame pop(int bottom, Environment caller) {
+        Frame frame = frames[--top];
+        while (frame.openBlocks > 0) exit(frame);
+        Frame next = top > bottom ? frames[top - 1] : null;
+        interpreter.exitScope(frame.base, next != null ? next.environment : caller);
+        if (frame.frames != null) frame.frames.release(frame.base);
+        frame.base = null;
+        frame.environment = null;
+        frame.frames = null;
+        while (frame.sp > 0) frame.pop();
+        return next;
+    }
+
+    private void enter(Frame frame, Stmt.Block block) {
+        FramePool pool = EscapeAnalysis.framePool(interpreter, block);
+        if (pool == null || pool.isEmpty()) interpreter.allocate(MemoryMeter.ENVIRONMENT);
+        Environment environment = pool != null
+                ? pool.acquire(frame.environment) : new Environment(frame.environment);
+        if (frame.openBlocks == frame.blocks.length) {
+            frame.blocks = Arrays.copyOf(frame.blocks, frame.openBlocks * 2);
+        }
+        frame.blocks[frame.openBlocks++] = block;
+        interpreter.enterScope(environment, block.statements);
+        frame.environment = environment;
+    }
+
+    private void exit(Frame frame) {
+        Stmt.Block block = frame.blocks[--frame.openBlocks];
+        frame.blocks[frame.openBlocks] = null;
+        Environment environment = frame.environment;
+        Environment enclosing = environment.enclosing;
+        interpreter.exitScope(environment, enclosing);
+        FramePool pool = EscapeAnalysis.framePool(interpreter, block);
+        if (pool != null) pool.release(environment);
+        frame.environment = enclosing;
+    }
+
+    // Drops the frames a runtime error left, as the recursive evaluator's
+    // finally blocks would have, but without recycling their scopes.
+    private void abandon(int bottom) {
+        while (top > bottom) {
+            Frame frame = frames[--top];
+            for (Environment scope = frame.environment; scope != frame.base;
+                 scope = scope.enclosing) {
+                scope.running = null;
+            }
+            frame.base.running = null;
+            Arrays.fill(frame.blocks, 0, frame.openBlocks, null);
+            frame.openBlocks = 0;
+            frame.base = null;
+            frame.environment = null;
+            frame.frames = null;
+            frame.memo = null;
+            frame.arguments = null;
+            while (frame.sp > 0) frame.pop();
+        }
+    }
+
+    private static Code code(Stmt.Function declaration) {
+        Code code = declaration.frameCode;
+        if (code == null) {
+            Compiler compiler = new Compiler();
+            compiler.statements(declaration.body);
+            compiler.emit(CONSTANT, null, null);
+            compiler.emit(RETURN, null, null);
+            code = new Code(compiler.code.toArray(new Instruction[0]));
+            declaration.frameCode = code;
+        }
+        return code;
+    }
+
+    // Turns a function body into instructions. Control flow only ever
+    // jumps forward out of a statement or back to the start of a loop, so
+    // the operand stack is always empty between statements.
+    private static final class Compiler {
+        final List<Instruction> code = new ArrayList<>();
+
+        Instruction emit(int op, Object node, Token token) {
+            Instruction instruction = new Instruction(op, node, token);
+            code.add(instruction);
+            return instruction;
+        }
+
+        void patch(Instruction jump) {
+            jump.target = code.size();
+        }
+
+        void statements(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        void statement(Stmt stmt) {
+            if (stmt instanceof Stmt.Return returnStmt) {
+                if (returnStmt.value == null) {
+                    emit(CONSTANT, null, null);
+                } else {
+                    expression(returnStmt.value);
+                }
+                emit(RETURN, null, returnStmt.keyword);
+            } else if (!hasCall(stmt)) {
+                // A return in it comes back as a Return, which EXECUTE
+                // turns into one here.
+                emit(EXECUTE, stmt, null);
+            } else if (stmt instanceof Stmt.Expression expression) {
+                expression(expression.expression);
+                emit(EXPRESSION, null, null);
+            } else if (stmt instanceof Stmt.Print print) {
+                expression(print.expression);
+                emit(PRINT, null, null);
+            } else if (stmt instanceof Stmt.Var var) {
+                expression(var.initializer);
+                emit(DEFINE, null, var.name);
+            } else if (stmt instanceof Stmt.Block block) {
+                emit(ENTER, block, null);
+                statements(block.statements);
+                emit(EXIT, block, null);
+            } else if (stmt instanceof Stmt.If ifStmt) {
+                branches(ifStmt.condition, ifStmt.thenBranch, ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Ternary ternary) {
+                branches(ternary.condition, ternary.ifTrue, ternary.ifFalse);
+            } else if (stmt instanceof Stmt.While whileStmt) {
+                if (whileStmt.hoisted != null) emit(CLEAR, whileStmt.hoisted, null);
+                int start = code.size();
+                expression(whileStmt.condition);
+                Instruction exit = emit(JUMP_IF_FALSE, null, null);
+                statement(whileStmt.body);
+                emit(STEP, null, whileStmt.keyword);
+                emit(JUMP, null, null).target = start;
+                patch(exit);
+            } else if (stmt instanceof Stmt.DoWhile doWhile) {
+                if (doWhile.hoisted != null) emit(CLEAR, doWhile.hoisted, null);
+                int start = code.size();
+                statement(doWhile.body);
+                emit(STEP, null, doWhile.keyword);
+                expression(doWhile.condition);
+                emit(JUMP_IF_TRUE, null, null).target = start;
+            } else {
+                emit(EXECUTE, stmt, null);
+            }
+        }
+
+        private void branches(Expr condition, Stmt ifTrue, Stmt ifFalse) {
+            expression(condition);
+            Instruction skip = emit(JUMP_IF_FALSE, null, null);
+            statement(ifTrue);
+            if (ifFalse == null) {
+                patch(skip);
+                return;
+            }
+            Instruction end = emit(JUMP, null, null);
+            patch(skip);
+            statement(ifFalse);
+            patch(end);
+        }
+
+        void expression(Expr expr) {
+            if (!hasCall(expr)) {
+                emit(EVALUATE, expr, null);
+            } else if (expr instanceof Expr.Call call) {
+                expression(call.callee);
+                for (Expr argument : call.arguments) {
+                    expression(argument);
+                }
+                emit(CALL, call, call.paren);
+            } else if (expr instanceof Expr.Binary binary) {
+                expression(binary.left);
+                expression(binary.right);
+                emit(BINARY, null, binary.operator);
+            } else if (expr instanceof Expr.Unary unary) {
+                expression(unary.right);
+                emit(UNARY, null, unary.operator);
+            } else if (expr instanceof Expr.Grouping grouping) {
+                expression(grouping.expression);
+            } else if (expr instanceof Expr.Logical logical) {
+                expression(logical.left);
+                Instruction end = emit(logical.operator.type == TokenType.OR ? OR : AND,
+                        null, null);
+                expression(logical.right);
+                patch(end);
+            } else if (expr instanceof Expr.Assign assign) {
+                expression(assign.value);
+                emit(ASSIGN, null, assign.name);
+            } else if (expr instanceof Expr.AssignShorthand shorthand) {
+                expression(shorthand.value);
+                emit(SHORTHAND, shorthand, null);
+            } else if (expr instanceof Expr.AccumulateVariable accumulate) {
+                emit(GET, null, accumulate.name);
+                expression(accumulate.value);
+                emit(BINARY, null, accumulate.operator);
+                emit(ASSIGN, null, accumulate.name);
+            } else {
+                emit(EVALUATE, expr, null);
+            }
+        }
+
+        // Whether running the statement can call a function. Declaring one
+        // does not.
+        private static boolean hasCall(Stmt stmt) {
+            if (stmt == null) return false;
+            if (stmt instanceof Stmt.Expression expression) return hasCall(expression.expression);
+            if (stmt instanceof Stmt.Print print) return hasCall(print.expression);
+            if (stmt instanceof Stmt.Var var) return hasCall(var.initializer);
+            if (stmt instanceof Stmt.Return returnStmt) return hasCall(returnStmt.value);
+            if (stmt instanceof Stmt.Block block) return hasCall(block.statements);
+            if (stmt instanceof Stmt.If ifStmt) {
+                return hasCall(ifStmt.condition)
+                        || hasCall(ifStmt.thenBranch) || hasCall(ifStmt.elseBranch);
+            }
+            if (stmt instanceof Stmt.Ternary ternary) {
+                return hasCall(ternary.condition)
+                        || hasCall(ternary.ifTrue) || hasCall(ternary.ifFalse);
+            }
+            if (stmt instanceof Stmt.While whileStmt) {
+                return hasCall(whileStmt.condition) || hasCall(whileStmt.body);
+            }
+            if (stmt instanceof Stmt.DoWhile doWhile) {
+                return hasCall(doWhile.condition) || hasCall(doWhile.body);
+            }
+            // A function declaration, or an import, which runs its module
+            // in the Interpreter.
+            return false;
+        }
+
+        private static boolean hasCall(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                if (hasCall(statement)) return true;
+            }
+            return false;
+        }
+
+        private static boolean hasCall(Expr expr) {
+            if (expr == null) return false;
+            if (expr instanceof Expr.Call) return true;
+            if (expr instanceof Expr.Binary binary) {
+                return hasCall(binary.left) || hasCall(binary.right);
+            }
+            if (expr instanceof Expr.Logical logical) {
+                return hasCall(logical.left) || hasCall(logical.right);
+            }
+            if (expr instanceof Expr.Unary unary) return hasCall(unary.right);
+            if (expr instanceof Expr.Grouping grouping) return hasCall(grouping.expression);
+            if (expr instanceof Expr.Assign assign) return hasCall(assign.value);
+            if (expr instanceof Expr.AssignShorthand shorthand) return hasCall(shorthand.value);
+            if (expr instanceof Expr.AccumulateVariable accumulate) {
+                return hasCall(accumulate.value);
+            }
+            if (expr instanceof Expr.Hoisted hoisted) return hasCall(hoisted.expression);
+            // Variables, literals and the fused comparisons and increments.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The variables a function body refers to, found once per declaration so
+// that a closure can capture just those instead of its whole defining
+// scope. A use only counts if no scope inside the function has declared
+// the name by then: one declared later, or in a block that has ended,
+// still has to be found outside. A body the parser skipped is parsed
+// first, so the analysis only ever sees what the body really uses.
+class FreeVariables implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    final Set<String> referenced = new LinkedHashSet<>();
+    // The names each scope inside the function has declared so far,
+    // innermost first.
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+
+    // Null if the body, or a function nested in it, has a syntax error.
+    static FreeVariables of(Stmt.Function function) {
+        FreeVariables analysis = function.freeVariables;
+        if (analysis == null) {
+            analysis = new FreeVariables();
+            try {
+                analysis.scanFunction(function);
+            } catch (RuntimeError error) {
+                return null;
+            }
+            function.freeVariables = analysis;
+        }
+        return analysis;
+    }
+
+    // The parameters share a scope with the body.
+    private void scanFunction(Stmt.Function function) {
+        Set<String> scope = new HashSet<>();
+        for (Token param : function.params) {
+            scope.add(param.lexeme);
+        }
+        scopes.push(scope);
+        scan(function.body);
+        scopes.pop();
+    }
+
+    private void use(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name)) return;
+        }
+        referenced.add(name);
+    }
+
+    private void scan(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            scan(statement);
+        }
+    }
+
+    private void scan(Stmt stmt) {
+        if (stmt != null) stmt.accept(this);
+    }
+
+    private void scan(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    @Override
+    public Void visitAccumulateVariableExpr(Expr.AccumulateVariable expr) {
+        use(expr.name.lexeme);
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        use(expr.name.lexeme);
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignShorthandExpr(Expr.AssignShorthand expr) {
+        use(expr.name.lexeme);
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        scan(expr.callee);
+        for (Expr argument : expr.arguments) {
+            scan(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCompareVariableExpr(Expr.CompareVariable expr) {
+        use(expr.name.lexeme);
+        if (expr.other != null) use(expr.other.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        scan(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitHoistedExpr(Expr.Hoisted expr) {
+        scan(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementVariableExpr(Expr.IncrementVariable expr) {
+        use(expr.name.lexeme);
+        if (expr.other != null) use(expr.other.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        use(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashSet<>());
+        scan(stmt.statements);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitDoWhileStmt(Stmt.DoWhile stmt) {
+        scan(stmt.body);
+        scan(stmt.condition);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Declared before the body runs, so it can call itself.
+        scopes.peek().add(stmt.name.lexeme);
+        scanFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        scan(stmt.condition);
+        scan(stmt.thenBranch);
+        scan(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        scan(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryStmt(Stmt.Ternary stmt) {
+        scan(stmt.condition);
+        scan(stmt.ifTrue);
+        scan(stmt.ifFalse);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        scan(stmt.initializer);
+        scopes.peek().add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        scan(stmt.condition);
+        scan(stmt.body);
+        return null;
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+// Second tier for hot functions. Once a function declaration has been
+// called THRESHOLD times its body is translated to Java source, compiled
+// in memory with the JDK's own compiler on a background thread and loaded
+// as a hidden class, so HotSpot can inline and optimize it like any other
+// Java code. Values stay Objects; arithmetic and comparisons on two longs
+// are done inline and everything else goes through the same Interpreter
+// methods the tree walker uses, so results and error messages are
+// identical. Calls go through LoxCallSites held in static final fields,
+// so a site linked to a native becomes a direct, inlinable call. Bodies
+// using anything the translator does not handle keep running in the
+// interpreter.
+//
+// javac needs a second or more of CPU to warm up before its first class
+// is ready. With a spare core that happens beside the interpreter; with
+// one core it comes straight out of the run, and a script that finishes
+// in a few seconds ends up slower than it would have been without this
+// tier (see TierBenchmark). So on a single processor the tier is off
+// unless lox.compileThreshold is set explicitly.
+final class FunctionCompiler {
+    static final int THRESHOLD = Integer.getInteger("lox.compileThreshold",
+            Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0);
+    private static final boolean LOG = Boolean.getBoolean("lox.compileLog");
+
+    private static final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lox-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FunctionCompiler() {}
+
+    static boolean isEnabled() {
+        return THRESHOLD > 0 && javac != null;
+    }
+
+    static void compileLater(Stmt.Function declaration) {
+        worker.execute(() -> {
+            CompiledFunction compiled = compile(declaration);
+            if (compiled != null) declaration.compiled = compiled;
+        });
+    }
+
+    static CompiledFunction compile(Stmt.Function declaration) {
+        String className = "LoxCompiled" + classCounter.incrementAndGet();
+        Translator translator = new Translator(className);
+        String source;
+        try {
+            source = translator.translate(declaration);
+        } catch (Unsupported unsupported) {
+            log(declaration, "not compiled, uses " + unsupported.getMessage());
+            return null;
+        }
+
+        byte[] bytes = javac(className, source);
+        if (bytes == null) {
+            log(declaration, "not compiled, javac failed");
+            return null;
+        }
+
+        try {
+            List<Object> classData = Arrays.asList(translator.tokens.toArray(new Token[0]),
+                    translator.constants.toArray(), translator.sites.toArray(new LoxCallSite[0]));
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, classData, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class));
+            CompiledFunction compiled = (CompiledFunction) constructor.invoke();
+            log(declaration, "compiled");
+            return compiled;
+        } catch (Throwable throwable) {
+            log(declaration, "not compiled, " + throwable);
+            return null;
+        }
+    }
+
+    private static void log(Stmt.Function declaration, String message) {
+        if (LOG) {
+            System.err.println("[jit] " + declaration.name.lexeme + " (line " +
+                    declaration.name.line + "): " + message);
+        }
+    }
+
+    private static byte[] javac(String className, String source) {
+        Map<String, ByteArrayOutputStream> output = new HashMap<>();
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+                javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        output.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                "-g:none", "-proc:none", "-nowarn");
+        Boolean success = javac.getTask(new StringWriter(), files, diagnostic -> {},
+                options, null, List.of(file)).call();
+        ByteArrayOutputStream bytes = output.get(className);
+        if (!Boolean.TRUE.equals(success) || bytes == null) return null;
+        return bytes.toByteArray();
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String what) {
+            super(what, null, false, false);
+        }
+    }
+
+    // Turns one function body into the source of a CompiledFunction.
+    // Every subexpression is evaluated into its own temporary in source
+    // order, which keeps the interpreter's left-to-right evaluation even
+    // where later operands assign to earlier ones.
+    private static class Translator {
+        final List<Token> tokens = new ArrayList<>();
+        final List<Object> constants = new ArrayList<>();
+        final List<LoxCallSite> sites = new ArrayList<>();
+        private final Map<Token, Integer> tokenIndexes = new IdentityHashMap<>();
+        private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+        private final String className;
+        private final StringBuilder code = new StringBuilder();
+        private int indent = 2;
+        private int locals = 0;
+        private int temps = 0;
+
+        Translator(String className) {
+            this.className = className;
+        }
+
+        String translate(Stmt.Function function) {
+            scopes.push(new HashMap<>());
+            for (int i = 0; i < function.params.size(); i++) {
+                line("Object " + declare(function.params.get(i)) + " = arguments.get(" + i + ");");
+            }
+            for (Stmt statement : function.body) {
+                statement(statement);
+            }
+            line("return null;");
+
+            StringBuilder fields = new StringBuilder();
+            for (int i = 0; i < sites.size(); i++) {
+                fields.append("    private static final MethodHandle site").append(i)
+                        .append(" = ((LoxCallSite[]) DATA.get(2))[").append(i).append("].invoker();\n");
+            }
+
+            return "import java.lang.invoke.MethodHandle;\n" +
+                    "import java.lang.invoke.MethodHandles;\n" +
+                    "import java.util.List;\n\n" +
+                    "final class " + className + " implements CompiledFunction {\n" +
+                    "    private static final List<?> DATA = classData();\n" +
+                    "    private static final Token[] tokens = (Token[]) DATA.get(0);\n" +
+                    "    private static final Object[] constants = (Object[]) DATA.get(1);\n" +
+                    fields + "\n" +
+                    "    private static List<?> classData() {\n" +
+                    "        try {\n" +
+                    "            return MethodHandles.classData(MethodHandles.lookup(), \"_\", List.class);\n" +
+                    "        } catch (IllegalAccessException e) {\n" +
+                    "            throw new IllegalStateException(e);\n" +
+                    "        }\n" +
+                    "    }\n\n" +
+                    "    @Override\n" +
+                    "    public Object call(LoxFunction function, Interpreter in, List<Object> arguments)\n" +
+                    "            throws Throwable {\n" +
+                    code +
+                    "    }\n" +
+                    "}\n";
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression) {
+                line("in.expressionResult(" + expression(((Stmt.Expression) stmt).expression) + ");");
+            } else if (stmt instanceof Stmt.Print) {
+                line("in.print(" + expression(((Stmt.Print) stmt).expression) + ");");
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                String value = var.initializer == null ? "null" : expression(var.initializer);
+                line("Object " + declare(var.name) + " = " + value + ";");
+            } else if (stmt instanceof Stmt.Block) {
+                line("{");
+                scopes.push(new HashMap<>());
+                nested(((Stmt.Block) stmt).statements);
+                scopes.pop();
+                line("}");
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                branch(ifStmt.condition, ifStmt.thenBranch, ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Ternary) {
+                Stmt.Ternary ternary = (Stmt.Ternary) stmt;
+                branch(ternary.condition, ternary.ifTrue, ternary.ifFalse);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                line("while (true) {");
+                indent++;
+                line("if (!in.isTruthy(" + expression(loop.condition) + ")) break;");
+                nested(loop.body);
+                line("in.step(" + token(loop.keyword) + ");");
+                indent--;
+                line("}");
+            } else if (stmt instanceof Stmt.DoWhile) {
+                Stmt.DoWhile loop = (Stmt.DoWhile) stmt;
+                line("do {");
+                indent++;
+                nested(loop.body);
+                line("in.step(" + token(loop.keyword) + ");");
+                line("if (!in.isTruthy(" + expression(loop.condition) + ")) break;");
+                indent--;
+                line("} while (true);");
+            } else if (stmt instanceof Stmt.Return) {
+                Stmt.Return returnStmt = (Stmt.Return) stmt;
+                String value = returnStmt.value == null ? "null" : expression(returnStmt.value);
+                // "if (true)" keeps javac from rejecting any dead code after it.
+                line("if (true) return " + value + ";");
+            } else {
+                throw new Unsupported(stmt.getClass().getSimpleName());
+            }
+        }
+
+        private void branch(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            line("if (in.isTruthy(" + expression(condition) + ")) {");
+            nested(thenBranch);
+            if (elseBranch != null) {
+                line("} else {");
+                nested(elseBranch);
+            }
+            line("}");
+        }
+
+        private void nested(Stmt stmt) {
+            indent++;
+            statement(stmt);
+            indent--;
+        }
+
+        private void nested(List<Stmt> statements) {
+            indent++;
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+            indent--;
+        }
+
+        // Emits the code that evaluates expr and returns the name of the
+        // temporary (or constant) holding its value.
+        private String expression(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (value == null) return "null";
+                constants.add(value);
+                return "constants[" + (constants.size() - 1) + "]";
+            }
+            if (expr instanceof Expr.Grouping) {
+                return expression(((Expr.Grouping) expr).expression);
+            }
+            if (expr instanceof Expr.Hoisted) {
+                // HotSpot moves invariant code out of compiled loops itself.
+                return expression(((Expr.Hoisted) expr).expression);
+            }
+            if (expr instanceof Expr.CompareVariable || expr instanceof Expr.IncrementVariable
+                    || expr instanceof Expr.AccumulateVariable) {
+                // The typed fast paths below already cover these shapes.
+                return expression(Optimizer.unfused(expr));
+            }
+            if (expr instanceof Expr.Variable) {
+                Token name = ((Expr.Variable) expr).name;
+                String local = resolve(name);
+                return temp(local != null ? local : "function.lookUp(" + token(name) + ")");
+            }
+            if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign) expr;
+                String value = expression(assign.value);
+                store(assign.name, value);
+                return value;
+            }
+            if (expr instanceof Expr.AssignShorthand) {
+                return shorthand((Expr.AssignShorthand) expr);
+            }
+            if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                String right = expression(unary.right);
+                if (unary.operator.type == TokenType.BANG) {
+                    return temp("!in.isTruthy(" + right + ")");
+                }
+                return temp("in.unary(" + token(unary.operator) + ", " + right + ")");
+            }
+            if (expr instanceof Expr.Binary) {
+                return binary((Expr.Binary) expr);
+            }
+            if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical) expr;
+                String result = temp(expression(logical.left));
+                boolean isOr = logical.operator.type == TokenType.OR;
+                line("if (" + (isOr ? "!" : "") + "in.isTruthy(" + result + ")) {");
+                indent++;
+                line(result + " = " + expression(logical.right) + ";");
+                indent--;
+                line("}");
+                return result;
+            }
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                String callee = expression(call.callee);
+                List<String> arguments = new ArrayList<>();
+                for (Expr argument : call.arguments) {
+                    arguments.add(expression(argument));
+                }
+                sites.add(new LoxCallSite(call.paren));
+                return temp("(Object) site" + (sites.size() - 1) + ".invokeExact(" + callee +
+                        ", in, new Object[] {" + String.join(", ", arguments) + "})");
+            }
+
+            throw new Unsupported(expr.getClass().getSimpleName());
+        }
+
+        private String binary(Expr.Binary expr) {
+            String left = expression(expr.left);
+            String right = expression(expr.right);
+            String slow = "in.binary(" + token(expr.operator) + ", " + left + ", " + right + ")";
+            String a = "((Long) " + left + ")";
+            String b = "((Long) " + right + ")";
+
+            String fast;
+            switch (expr.operator.type) {
+                case PLUS: fast = "LoxNumber.of(" + a + " + " + b + ")"; break;
+                case MINUS: fast = "LoxNumber.of(" + a + " - " + b + ")"; break;
+                case STAR: fast = "LoxNumber.multiply(" + left + ", " + right + ")"; break;
+                case LESS: fast = a + " < " + b; break;
+                case LESS_EQUAL: fast = a + " <= " + b; break;
+                case GREATER: fast = a + " > " + b; break;
+                case GREATER_EQUAL: fast = a + " >= " + b; break;
+                case EQUAL_EQUAL: return temp("Interpreter.isEqual(" + left + ", " + right + ")");
+                case BANG_EQUAL: return temp("!Interpreter.isEqual(" + left + ", " + right + ")");
+                default: return temp(slow);
+            }
+
+            return temp("(" + left + " instanceof Long && " + right + " instanceof Long) ? (Object) (" +
+                    fast + ") : " + slow);
+        }
+
+        private String shorthand(Expr.AssignShorthand expr) {
+            String rightHandSide = expression(expr.value);
+            String local = resolve(expr.name);
+            String current = temp(local != null ? local : "function.lookUp(" + token(expr.name) + ")");
+            String slow = "in.shorthand(" + token(expr.name) + ", " + token(expr.operator) + ", " +
+                    current + ", " + rightHandSide + ")";
+
+            String result;
+            switch (expr.operator.type) {
+                case PLUS_EQUAL:
+                case PLUS_PLUS:
+                case MINUS_MINUS:
+                    result = temp("(" + current + " instanceof Long && " + rightHandSide +
+                            " instanceof Long) ? LoxNumber.of((Long) " + current + " + (Long) " +
+                            rightHandSide + ") : " + slow);
+                    break;
+                default:
+                    result = temp(slow);
+            }
+
+            line("if (" + result + " != null) {");
+            indent++;
+            store(expr.name, result);
+            indent--;
+            line("}");
+            return result;
+        }
+
+        private void store(Token name, String value) {
+            String local = resolve(name);
+            if (local != null) {
+                line(local + " = " + value + ";");
+            } else {
+                line("function.assign(" + token(name) + ", " + value + ");");
+            }
+        }
+
+        private String declare(Token name) {
+            String local = "v" + locals++;
+            scopes.peek().put(name.lexeme, local);
+            return local;
+        }
+
+        private String resolve(Token name) {
+            for (Map<String, String> scope : scopes) {
+                String local = scope.get(name.lexeme);
+                if (local != null) return local;
+            }
+            return null;
+        }
+
+        private String temp(String value) {
+            String temp = "t" + temps++;
+            line("Object " + temp + " = " + value + ";");
+            return temp;
+        }
+
+        private String token(Token token) {
+            Integer index = tokenIndexes.get(token);
+            if (index == null) {
+                index = tokens.size();
+                tokens.add(token);
+                tokenIndexes.put(token, index);
+            }
+            return "tokens[" + index + "]";
+        }
+
+        private void line(String text) {
+            for (int i = 0; i < indent; i++) code.append("    ");
+            code.append(text).append('\n');
+        }
+    }
+}
@@ -3,50 +3,84 @@ import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
 
+// Writes Expr.java and Stmt.java. Each node is described as
+//
+//   Name : final fields | mutable fields # comment on the mutable fields
+//
+// where the mutable part, for per-node caches the interpreter fills in at
+// runtime, is optional. The base classes are sealed so the interpreter can
+// dispatch on the node type with instanceof patterns as well as through
+// the visitor.
 public class GenerateAst {
     public static void main(String[] args) throws IOException {
-        /*if (args.length != 1) {
+        if (args.length != 1) {
             System.err.println("Usage: generate_ast <output directory>");
-            System.exit(1);
-        }*/
-        String outputDir = "/Users/coding/Desktop/";
+            System.exit(64);
+        }
+        String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Grouping : Expr expression",
-                "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "AccumulateVariable : Token name, Token operator, Expr value" +
+                        " # Fused by the Optimizer: name = name operator value.",
+                "Assign             : Token name, Expr value",
+                "AssignShorthand    : Token name, Token operator, Expr value",
+                "Binary             : Expr left, Token operator, Expr right",
+                "Call               : Expr callee, Token paren, List<Expr> arguments" +
+                        " | LoxCallSite site # Linked lazily on the first call.",
+                "CompareVariable    : Token name, Token operator, Token other, Object constant" +
+                        " # Fused by the Optimizer: name compared to the variable other," +
+                        " or to constant if other is null.",
+                "Grouping           : Expr expression",
+                "Hoisted            : Expr expression | boolean cached, Object value" +
+                        " # Kept until the loop the Optimizer hoisted it out of starts again.",
+                "IncrementVariable  : Token name, Token operator, Token other, Object constant" +
+                        " # Fused by the Optimizer: name +=, -=, ++ or -- by the variable other," +
+                        " or by constant if other is null.",
+                "Literal            : Object value",
+                "Logical            : Expr left, Token operator, Expr right",
+                "Unary              : Token operator, Expr right",
+                "Variable           : Token name"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
+                "Block      : List<Stmt> statements" +
+                        " | Boolean mayEscape, int frameSlot" +
+                        " # Filled in by EscapeAnalysis the first time the block runs.",
+                "DoWhile    : Token keyword, Expr condition, Stmt body" +
+                        " | List<Expr.Hoisted> hoisted # Cleared each time the loop starts.",
                 "Expression : Expr expression",
-                "Block      : List<Stmt> statements",
-                "Print      : Expr expression",
+                "Function   : Token name, List<Token> params, List<Stmt> body" +
+                        " | FreeVariables freeVariables, Boolean mayEscape, int frameSlot, int callCount," +
+                        " boolean compileRequested, volatile CompiledFunction compiled, Boolean memoizable," +
+                        " FrameStack.Code frameCode" +
+                        " # Shared by every closure over this declaration: what it" +
+                        " captures, how its frames are allocated, its tiered compilation state," +
+                        " whether Purity lets its results be cached and its code for FrameStack.",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+                "Import     : Token keyword, Token path" +
+                        " | java.nio.file.Path resolved # Filled in by ModuleLoader before the program runs.",
+                "Print      : Expr expression",
+                "Return     : Token keyword, Expr value",
+                "Ternary    : Expr condition, Stmt ifTrue, Stmt ifFalse",
                 "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "While      : Token keyword, Expr condition, Stmt body" +
+                        " | List<Expr.Hoisted> hoisted # Cleared each time the loop starts."
         ));
-
     }
+
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
-        writer.println("package com.craftinginterpreters.lox;");
-        writer.println();
         writer.println("import java.util.List;");
         writer.println();
+        writer.println("// Generated by GenerateAst. Edit the node list there, not this file.");
+        writer.println("abstract sealed class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
 
-        writer.println("abstract class " + baseName + " {");
-
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
+            String fields = type.substring(type.indexOf(':') + 1).trim();
             defineType(writer, baseName, className, fields);
         }
 
@@ -65,7 +99,7 @@ public class GenerateAst {
         for (String type : types) {
             String typeName = type.split(":")[0].trim();
             writer.println("    R visit" + typeName + baseName + "(" +
-                    typeName + " " + baseName.toLowerCase() + ");");
+                    baseName + "." + typeName + " " + baseName.toLowerCase() + ");");
         }
 
         writer.println("  }");
@@ -74,7 +108,21 @@ public class GenerateAst {
     private static void defineType(
             PrintWriter writer, String baseName,
             String className, String fieldList) {
-        writer.println("  static class " + className + " extends " +
+        String comment = null;
+        if (fieldList.contains("#")) {
+            comment = fieldList.substring(fieldList.indexOf('#') + 1).trim();
+            fieldList = fieldList.substring(0, fieldList.indexOf('#')).trim();
+        }
+        String mutableList = null;
+        if (fieldList.contains("|")) {
+            mutableList = fieldList.substring(fieldList.indexOf('|') + 1).trim();
+            fieldList = fieldList.substring(0, fieldList.indexOf('|')).trim();
+        }
+
+        writer.println();
+        // Without mutable fields the comment describes the node itself.
+        if (comment != null && mutableList == null) writer.println("  // " + comment);
+        writer.println("  static final class " + className + " extends " +
                 baseName + " {");
 
         // Constructor.
@@ -87,7 +135,7 @@ public class GenerateAst {
             writer.println("      this." + name + " = " + name + ";");
         }
 
-        writer.println("}");
+        writer.println("    }");
 
         // Visitor pattern.
         writer.println();
@@ -104,6 +152,14 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (mutableList != null) {
+            writer.println();
+            if (comment != null) writer.println("    // " + comment);
+            for (String field : mutableList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
-}                                                                  
\ No newline at end of file
+}
@@ -1,343 +1,369 @@
-import javax.xml.stream.FactoryConfigurationError;
 import java.io.*;
 import java.lang.Math;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.concurrent.TimeUnit;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+    // -Dlox.dispatch=pattern picks node types with instanceof patterns over
+    // the sealed AST instead of the megamorphic accept() call. The visit
+    // methods do the work either way. DispatchBenchmark compares the two.
+    static final boolean PATTERN_DISPATCH = "pattern".equals(System.getProperty("lox.dispatch"));
+    private static final int CHECK_INTERVAL = 1 << 12;
+
     final Environment globals = new Environment();
     private Environment environment = globals;
     private boolean isInREPL = false;
+    private LoxOutput output = new LoxOutput(
+            new FileOutputStream(FileDescriptor.out), LoxOutput.DEFAULT_BUFFER_SIZE);
+    private LoxReader stdin;
+    // The namespace each module ran in. A module only runs again once
+    // ModuleLoader has loaded a changed version of its file.
+    private final Map<ModuleLoader.Module, Environment> modules = new IdentityHashMap<>();
+    // This interpreter's own copy of each module's tree. ModuleLoader's is
+    // shared by the whole process, and running a tree caches state on it.
+    private final Map<ModuleLoader.Module, List<Stmt>> moduleTrees = new IdentityHashMap<>();
+    // The script being run and a fingerprint of its source, for Snapshot.
+    // Empty in the REPL.
+    private List<Stmt> program = List.of();
+    private long programFingerprint;
+    // Limits on each run of interpret(), 0 for none: how many steps, that
+    // is loop iterations and function calls, it may take, and for how
+    // long. -Dlox.maxSteps and -Dlox.timeLimit (in milliseconds) set them.
+    private long maxSteps = Long.getLong("lox.maxSteps", 0);
+    private long timeLimitMillis = Long.getLong("lox.timeLimit", 0);
+    // Steps are counted down in chunks of at most CHECK_INTERVAL, so the
+    // budget and the clock are only looked at when a chunk runs out.
+    private int countdown = Integer.MAX_VALUE;
+    private long stepsLeft;
+    private long deadline;
+    // A cap, in bytes, on what a run's strings, scopes and functions hold,
+    // 0 for none; -Dlox.memoryLimit sets it. Allocations charge a rough
+    // estimate of their size as they happen. Only once the charges pass
+    // the cap does MemoryMeter measure what the script can still reach,
+    // and that stands in for everything charged so far, so a script that
+    // merely churns through short-lived strings is not stopped. The meter
+    // cannot see into the locals of compiled functions, so with a cap
+    // every function stays in the tree walker.
+    private long memoryLimit = Long.getLong("lox.memoryLimit", 0);
+    private long memoryCharged;
+    private boolean memoryExceeded;
+    // Where the limits were last checked, which is where a charge that no
+    // call or step came after is reported when the run ends.
+    private Token lastChecked;
+    // The scope of every block and call being run, innermost last, for
+    // MemoryMeter.
+    private Environment[] scopes = new Environment[64];
+    private int depth;
+    // This interpreter's frame pools, by the slot EscapeAnalysis gave the
+    // block or function.
+    private FramePool[] framePools = new FramePool[64];
+    // How many Lox calls are running on the Java stack, and where calls go
+    // once there are FrameStack.ENTRY_DEPTH of them.
+    int callDepth;
+    final FrameStack frameStack = new FrameStack(this);
+    // For the text natives.
+    final PatternCache patterns = new PatternCache();
+    private final Set<Closeable> openResources =
+            Collections.newSetFromMap(new IdentityHashMap<>());
 
     Interpreter() {
-        globals.define("newFile", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                try {
-                    File myFile = new File(arguments.get(0).toString());
-                    return myFile.createNewFile();
-                } catch (IOException e) {
-                    return e.getCause().toString();
-                }
-            }
-
-            @Override
-            public int arity() {
-                return 1;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("getFile", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                String fileName = arguments.get(0).toString();
-                try {
-                    byte[] bytes = Files.readAllBytes(Paths.get(fileName));
-                    return new String(bytes, Charset.defaultCharset());
-                } catch (IOException e) {
-                    return null;
-                }
-            }
-
-            @Override
-            public int arity() {
-                return 1;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("deleteFile", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                File myObj = new File(arguments.get(0).toString());
-                return myObj.delete();
-            }
-
-            @Override
-            public int arity() {
-                return 1;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("writeFile", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                try {
-                    String fileName = arguments.get(0).toString();
-                    FileWriter fileWriter = new FileWriter(fileName);
-                    fileWriter.write(arguments.get(1).toString());
-                    fileWriter.close();
-                    return true;
-                } catch (IOException e) {
-                    return false;
-                }
-            }
-
-            @Override
-            public int arity() {
-                return 2;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("runCommand", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                try {
-                    Process process = Runtime.getRuntime().exec("ls /home/mkyong/");
-                    StringBuilder output = new StringBuilder();
-
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(process.getInputStream()));
-
-                    System.out.println(reader.readLine());
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        output.append(line + "\n");
-                    }
-
-                    return output;
-                } catch (IOException e) {
-                    return null;
-                }
-            }
-
-            @Override
-            public int arity() {
-                return 1;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("time", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
+        Natives.defineAll(globals);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+    // The one buffered reader over standard input. Everything that reads
+    // stdin goes through it so no call can swallow input meant for the next.
+    LoxReader stdin() {
+        if (stdin == null) {
+            stdin = new LoxReader("stdin", Channels.newChannel(System.in),
+                    Charset.defaultCharset(), LoxReader.DEFAULT_BUFFER_SIZE);
+        }
+        return stdin;
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    <T extends Closeable> T track(T resource) {
+        openResources.add(resource);
+        return resource;
+    }
 
-        globals.define("input", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
+    void untrack(Object resource) {
+        openResources.remove(resource);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                Scanner scanner = new Scanner(System.in);
-                return scanner.nextLine();
+    // Closes every reader and writer the script left open, flushing any
+    // buffered output.
+    void closeResources() {
+        for (Closeable resource : openResources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // Nothing left to report it to.
             }
+        }
+        openResources.clear();
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("type", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
-
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                //System.out.println(arguments.get(0).toString());
-                if (arguments.get(0) instanceof Double) {
-                    return "Number";
-                } else if (arguments.get(0) instanceof Boolean) {
-                    return "Bool";
-                } else if (arguments.get(0).toString().startsWith("<fn")) {
-                    return arguments.get(0).toString();
-                }
-
-                return "String";
-            }
+    void setREPL(boolean isInREPL) {
+        this.isInREPL = isInREPL;
+        output.setLineBuffered(isInREPL);
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    void setOutput(LoxOutput output) {
+        this.output.flush();
+        this.output = output;
+    }
 
-        globals.define("number", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
+    void flushOutput() {
+        output.flush();
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                try {
-                    return Double.parseDouble(arguments.get(0).toString());
-                } catch (Exception exception) {
-                    return null;
-                }
-            }
+    void setProgram(List<Stmt> program, String source) {
+        this.program = program;
+        // The same source can be optimized into different trees.
+        this.programFingerprint = ((long) source.hashCode() << 32 | source.length())
+                ^ (Optimizer.ENABLED ? 1L << 31 : 0);
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    List<Stmt> program() {
+        return program;
+    }
 
-        globals.define("string", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
+    long programFingerprint() {
+        return programFingerprint;
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                return stringify(arguments.get(0));
-            }
+    Set<ModuleLoader.Module> importedModules() {
+        return modules.keySet();
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    // The statements this interpreter runs for the module.
+    List<Stmt> statements(ModuleLoader.Module module) {
+        return moduleTrees.computeIfAbsent(module, key -> AstCopier.copy(key.statements));
+    }
 
-        globals.define("bool", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                String value = arguments.get(0).toString();
+    void setLimits(long maxSteps, long timeLimitMillis) {
+        this.maxSteps = maxSteps;
+        this.timeLimitMillis = timeLimitMillis;
+    }
 
-                return Boolean.parseBoolean(value);
-            }
+    void setMemoryLimit(long bytes) {
+        this.memoryLimit = bytes;
+    }
 
-            @Override
-            public int arity() {
-                return 1;
-            }
+    boolean mayCompile() {
+        return memoryLimit == 0;
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("sleep", new LoxCallable() {
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                try {
-                    Double time = Double.parseDouble(arguments.get(0).toString());
-                    TimeUnit.SECONDS.sleep(time.longValue());
-                    return true;
-                } catch (NumberFormatException | InterruptedException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
+    // Charges an allocation of about bytes. False if the script would then
+    // hold more than its limit; the call site the charge happened under,
+    // or failing that the next step(), reports that.
+    boolean allocate(long bytes) {
+        memoryCharged += bytes;
+        if (memoryLimit == 0 || memoryCharged <= memoryLimit) return true;
+        long held = MemoryMeter.measure(this) + bytes;
+        if (held <= memoryLimit) {
+            // Measuring again only after another eighth of the limit has
+            // been allocated keeps a script that lives close to its limit
+            // from being measured at every allocation, at the price of
+            // overshooting the limit by up to that much.
+            memoryCharged = Math.min(held, memoryLimit - memoryLimit / 8);
+            return true;
+        }
+        memoryExceeded = true;
+        countdown = 0;
+        return false;
+    }
 
-            @Override
-            public int arity() {
-                return 1;
-            }
+    // For allocations that can report the error right away.
+    private void allocate(Token token, long bytes) {
+        if (!allocate(bytes)) throw memoryLimitError(token);
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    // Called by call sites as soon as a call returns, so a native that
+    // charged more than the limit fails at the call that made it.
+    void checkMemory(Token token) {
+        if (memoryExceeded) throw memoryLimitError(token);
+    }
 
+    private ExecutionLimitError memoryLimitError(Token token) {
+        return new ExecutionLimitError(token,
+                "Memory limit of " + memoryLimit + " bytes exceeded.");
     }
 
-    void setREPL(boolean isInREPL) {
-        this.isInREPL = isInREPL;
+    // Every scope the running script can still reach values through.
+    void forEachScope(Consumer<Environment> action) {
+        action.accept(globals);
+        for (int i = 0; i < depth; i++) action.accept(scopes[i]);
+        modules.values().forEach(action);
     }
+
     void interpret(List<Stmt> statements) {
+        stepsLeft = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+        deadline = timeLimitMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis) : 0;
+        countdown = 0;
+        callDepth = 0;
+        memoryCharged = 0;
+        memoryExceeded = false;
+        lastChecked = null;
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
+            if (memoryExceeded) {
+                throw memoryLimitError(lastChecked != null
+                        ? lastChecked : new Token(TokenType.EOF, "", null, 1));
+            }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Called at every loop back-edge and function entry, by compiled
+    // bodies too. A native that blocks is not interrupted.
+    void step(Token token) {
+        if (--countdown < 0) checkLimits(token);
+    }
+
+    private void checkLimits(Token token) {
+        lastChecked = token;
+        if (memoryExceeded) throw memoryLimitError(token);
+        if (stepsLeft == 0) {
+            throw new ExecutionLimitError(token,
+                    "Step limit of " + maxSteps + " exceeded.");
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new ExecutionLimitError(token,
+                    "Time limit of " + timeLimitMillis + " ms exceeded.");
+        }
+
+        boolean limited = maxSteps > 0 || deadline != 0;
+        int chunk = (int) Math.min(stepsLeft, limited ? CHECK_INTERVAL : Integer.MAX_VALUE);
+        stepsLeft -= chunk;
+        // This step is the chunk's first.
+        countdown = chunk - 1;
     }
 
-    private String stringify(Object object) {
+    void execute(Stmt stmt) {
+        if (PATTERN_DISPATCH) {
+            dispatch(stmt);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    // Ordered roughly by how often each node runs in a hot loop.
+    private void dispatch(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression expression) {
+            visitExpressionStmt(expression);
+        } else if (stmt instanceof Stmt.Block block) {
+            visitBlockStmt(block);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            visitIfStmt(ifStmt);
+        } else if (stmt instanceof Stmt.Var var) {
+            visitVarStmt(var);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            visitReturnStmt(returnStmt);
+        } else if (stmt instanceof Stmt.Print print) {
+            visitPrintStmt(print);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            visitWhileStmt(whileStmt);
+        } else if (stmt instanceof Stmt.DoWhile doWhile) {
+            visitDoWhileStmt(doWhile);
+        } else if (stmt instanceof Stmt.Ternary ternary) {
+            visitTernaryStmt(ternary);
+        } else if (stmt instanceof Stmt.Function function) {
+            visitFunctionStmt(function);
+        } else if (stmt instanceof Stmt.Import importStmt) {
+            visitImportStmt(importStmt);
+        } else {
+            throw new IllegalStateException("Unknown statement " + stmt);
+        }
+    }
+
+    String stringify(Object object) {
         if (object == null) return "nil";
 
-        // Hack. Work around Java adding ".0" to integer-valued doubles.
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+        if (LoxNumber.isNumber(object)) {
+            return LoxNumber.format(object);
         }
 
         return object.toString();
     }
 
+    private void appendConcatOperand(StringBuilder builder, Object operand) {
+        if (LoxNumber.isNumber(operand)) {
+            LoxNumber.appendTo(builder, operand);
+        } else {
+            builder.append(operand.toString());
+        }
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        return binary(expr.operator, left, right);
+    }
+
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.subtract(left, right);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                if ((Double)right == 0.0) {
+                checkNumberOperands(operator, left, right);
+                if (LoxNumber.isZero(right)) {
                     return null;
                 }
-                return (double)left / (double)right;
+                return LoxNumber.divide(left, right);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.multiply(left, right);
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
+                if (LoxNumber.isNumber(left) && LoxNumber.isNumber(right)) {
+                    return LoxNumber.add(left, right);
                 }
                 if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                    String result = (String)left + (String)right;
+                    allocate(operator, MemoryMeter.sizeOf(result));
+                    return result;
                 }
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             case STAR_STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return Math.pow((Double) left, (Double) right);
+                checkNumberOperands(operator, left, right);
+                return Math.pow(LoxNumber.toDouble(left), LoxNumber.toDouble(right));
             case MODULUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (Double)left % (Double) right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.modulo(left, right);
             case DOT_PLUS:
-                String rightValue = right.toString();
-                String leftValue = left.toString();
-                if (right instanceof Double && right.toString().endsWith(".0")) {
-                    rightValue = right.toString().substring(0, right.toString().length() - 2);
-                }
-                if (left instanceof Double && left.toString().endsWith(".0")) {
-                    leftValue = left.toString().substring(0, left.toString().length() - 2);
-                }
-                return leftValue + rightValue;
+                StringBuilder builder = new StringBuilder();
+                appendConcatOperand(builder, left);
+                appendConcatOperand(builder, right);
+                String result = builder.toString();
+                allocate(operator, MemoryMeter.sizeOf(result));
+                return result;
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (Double)left > (Double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.greaterThan(left, right);
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (Double)left >= (Double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.greaterEqual(left, right);
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return  (Double)left < (Double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.lessThan(left, right);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return  (Double)left <= (Double)right;
+                checkNumberOperands(operator, left, right);
+                return LoxNumber.lessEqual(left, right);
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
 
@@ -347,9 +373,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        if (LoxNumber.isNumber(a) && LoxNumber.isNumber(b)) return LoxNumber.equal(a, b);
 
         return a.equals(b);
     }
@@ -369,10 +396,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        return unary(expr.operator, right);
+    }
+
+    Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                checkNumberOperand(operator, right);
+                return LoxNumber.negate(right);
             case BANG:
                 return !isTruthy(right);
         }
@@ -382,65 +413,160 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
+        if (LoxNumber.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
     private void checkNumberOperands(Token operator,
                                      Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+        if (LoxNumber.isNumber(left) && LoxNumber.isNumber(right)) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private Boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
-        if (object instanceof Double) {
-            return (Double) object != 0;
+        if (LoxNumber.isNumber(object)) {
+            return !LoxNumber.isZero(object);
         }
         return true;
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
+        if (PATTERN_DISPATCH) return dispatch(expr);
         return expr.accept(this);
     }
 
+    private Object dispatch(Expr expr) {
+        if (expr instanceof Expr.Variable variable) {
+            return visitVariableExpr(variable);
+        } else if (expr instanceof Expr.Literal literal) {
+            return visitLiteralExpr(literal);
+        } else if (expr instanceof Expr.Binary binary) {
+            return visitBinaryExpr(binary);
+        } else if (expr instanceof Expr.CompareVariable compare) {
+            return visitCompareVariableExpr(compare);
+        } else if (expr instanceof Expr.IncrementVariable increment) {
+            return visitIncrementVariableExpr(increment);
+        } else if (expr instanceof Expr.AccumulateVariable accumulate) {
+            return visitAccumulateVariableExpr(accumulate);
+        } else if (expr instanceof Expr.Call call) {
+            return visitCallExpr(call);
+        } else if (expr instanceof Expr.Hoisted hoisted) {
+            return visitHoistedExpr(hoisted);
+        } else if (expr instanceof Expr.Assign assign) {
+            return visitAssignExpr(assign);
+        } else if (expr instanceof Expr.AssignShorthand shorthand) {
+            return visitAssignShorthandExpr(shorthand);
+        } else if (expr instanceof Expr.Logical logical) {
+            return visitLogicalExpr(logical);
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return visitGroupingExpr(grouping);
+        } else if (expr instanceof Expr.Unary unary) {
+            return visitUnaryExpr(unary);
+        }
+        throw new IllegalStateException("Unknown expression " + expr);
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        Object result = evaluate(stmt.expression);
+        expressionResult(evaluate(stmt.expression));
+        return null;
+    }
+
+    void expressionResult(Object result) {
         if (isInREPL) {
-            System.out.println(stringify(result));
+            output.println(stringify(result));
         }
-        return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        FramePool frames = EscapeAnalysis.framePool(this, stmt);
+        if (frames == null || frames.isEmpty()) allocate(MemoryMeter.ENVIRONMENT);
+        if (frames == null) {
+            executeBlock(stmt.statements, new Environment(environment));
+            return null;
+        }
+
+        Environment frame = frames.acquire(environment);
+        try {
+            executeBlock(stmt.statements, frame);
+        } finally {
+            frames.release(frame);
+        }
         return null;
     }
 
+    // The pool in the slot, or null for slot 0, which scopes that may
+    // escape keep.
+    FramePool framePool(int slot) {
+        if (slot == 0) return null;
+        if (slot >= framePools.length) {
+            framePools = Arrays.copyOf(framePools, Math.max(slot + 1, framePools.length * 2));
+        }
+        FramePool pool = framePools[slot];
+        if (pool == null) framePools[slot] = pool = new FramePool();
+        return pool;
+    }
+
     void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
+        enterScope(environment, statements);
         try {
-            this.environment = environment;
-
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } finally {
-            this.environment = previous;
+            exitScope(environment, previous);
         }
     }
 
+    // Makes environment the scope the statements run in. FrameStack enters
+    // and leaves scopes itself, since it does not run them from Java.
+    void enterScope(Environment environment, List<Stmt> statements) {
+        if (depth == scopes.length) scopes = Arrays.copyOf(scopes, depth * 2);
+        scopes[depth++] = environment;
+        environment.running = statements;
+        this.environment = environment;
+    }
+
+    void exitScope(Environment environment, Environment previous) {
+        this.environment = previous;
+        environment.running = null;
+        scopes[--depth] = null;
+    }
+
+    Environment environment() {
+        return environment;
+    }
+
+    int scopeDepth() {
+        return depth;
+    }
+
+    // Leaves every scope entered since scopeDepth() was depth, for a run
+    // of FrameStack that a runtime error cut short.
+    void unwindScopes(int depth, Environment environment) {
+        while (this.depth > depth) scopes[--this.depth] = null;
+        this.environment = environment;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        if (LoxNumber.isNumber(value)) {
+            output.printlnNumber(value);
+        } else {
+            output.println(stringify(value));
+        }
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
@@ -490,26 +616,58 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignShorthandExpr(Expr.AssignShorthand expr) {
         Object rightHandSide = evaluate(expr.value);
         Object value = environment.get(expr.name);
-        TokenType operator = expr.operator.type;
-        if (value instanceof Double && rightHandSide instanceof Double) {
-            Double finalValue = null;
+        Object finalValue = shorthand(expr.name, expr.operator, value, rightHandSide);
+        if (finalValue != null) environment.assign(expr.name, finalValue);
+        return finalValue;
+    }
+
+    // The fused nodes do what the expressions they replace did, in the same
+    // order, without dispatching to a node for each operand.
+    @Override
+    public Object visitCompareVariableExpr(Expr.CompareVariable expr) {
+        Object left = environment.get(expr.name);
+        Object right = expr.other != null ? environment.get(expr.other) : expr.constant;
+        return binary(expr.operator, left, right);
+    }
+
+    @Override
+    public Object visitIncrementVariableExpr(Expr.IncrementVariable expr) {
+        Object rightHandSide = expr.other != null ? environment.get(expr.other) : expr.constant;
+        Object value = environment.get(expr.name);
+        Object finalValue = shorthand(expr.name, expr.operator, value, rightHandSide);
+        if (finalValue != null) environment.assign(expr.name, finalValue);
+        return finalValue;
+    }
+
+    @Override
+    public Object visitAccumulateVariableExpr(Expr.AccumulateVariable expr) {
+        Object left = environment.get(expr.name);
+        Object right = evaluate(expr.value);
+        Object value = binary(expr.operator, left, right);
+        environment.assign(expr.name, value);
+        return value;
+    }
+
+    Object shorthand(Token name, Token operatorToken, Object value, Object rightHandSide) {
+        TokenType operator = operatorToken.type;
+        if (LoxNumber.isNumber(value) && LoxNumber.isNumber(rightHandSide)) {
+            Object finalValue = null;
             if (operator == TokenType.SLASH_EQUAL) {
-                finalValue = (Double)value / (Double) rightHandSide;
+                finalValue = LoxNumber.divide(value, rightHandSide);
             } else if (operator == TokenType.STAR_EQUAL) {
-                finalValue = (Double)value * (Double)rightHandSide;
+                finalValue = LoxNumber.multiply(value, rightHandSide);
             } else if (operator == TokenType.PLUS_EQUAL) {
-                finalValue = (Double)value + (Double)rightHandSide;
+                finalValue = LoxNumber.add(value, rightHandSide);
             } else if (operator == TokenType.MINUS_EQUAL) {
-                finalValue = (Double)value - (Double)rightHandSide;
+                finalValue = LoxNumber.subtract(value, rightHandSide);
             } else if (operator == TokenType.PLUS_PLUS) {
-                finalValue = (Double)value + (Double)rightHandSide;
+                finalValue = LoxNumber.add(value, rightHandSide);
             } else if (operator == TokenType.MINUS_MINUS) {
-                finalValue = (Double)value + (Double)rightHandSide;
+                finalValue = LoxNumber.add(value, rightHandSide);
             }
-            if (finalValue != null) environment.assign(expr.name, finalValue);
             return finalValue;
         } else {
-            throw new RuntimeError(expr.name, "Types must match.");
+            throw new RuntimeError(name, "Types must match.");
         }
     }
 
@@ -528,48 +686,79 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.hoisted != null) clear(stmt.hoisted);
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            step(stmt.keyword);
         }
         return null;
     }
 
     @Override
     public Void visitDoWhileStmt(Stmt.DoWhile stmt) {
+        if (stmt.hoisted != null) clear(stmt.hoisted);
         do {
             execute(stmt.body);
+            step(stmt.keyword);
         } while (isTruthy(evaluate(stmt.condition)));
         return null;
     }
 
+    static void clear(List<Expr.Hoisted> hoisted) {
+        for (Expr.Hoisted expr : hoisted) {
+            expr.cached = false;
+            expr.value = null;
+        }
+    }
+
     @Override
-    public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    public Object visitHoistedExpr(Expr.Hoisted expr) {
+        if (!expr.cached) {
+            expr.value = evaluate(expr.expression);
+            expr.cached = true;
         }
+        return expr.value;
+    }
 
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
-                    "Can only call functions and classes.");
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
 
-        LoxCallable function = (LoxCallable)callee;
+        if (expr.site == null) expr.site = new LoxCallSite(expr.paren);
+        return expr.site.call(callee, this, arguments);
+    }
 
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
-                    function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+    // Runs the module once, in its own scope on top of the globals, and
+    // defines everything it defined at its top level here too.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        ModuleLoader.Module module = ModuleLoader.load(stmt.resolved);
+        if (!module.errors.isEmpty()) {
+            throw new RuntimeError(stmt.path, "Cannot import " + stmt.path.lexeme + ".");
         }
 
-
-        return function.call(this, arguments);
+        Environment namespace = modules.get(module);
+        if (namespace == null) {
+            namespace = new Environment(globals);
+            // Registered first, so an import cycle stops here.
+            modules.put(module, namespace);
+            executeBlock(statements(module), namespace);
+        }
+        namespace.forEach(environment::define);
+        return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
+        // Declared first so a recursive function can capture its own name.
+        environment.define(stmt.name.lexeme, null);
+        LoxFunction function = LoxFunction.declare(stmt, environment);
+        allocate(stmt.name, function.closure() == environment
+                ? MemoryMeter.FUNCTION : MemoryMeter.FUNCTION + MemoryMeter.ENVIRONMENT);
         environment.define(stmt.name.lexeme, function);
         return null;
     }
@@ -0,0 +1,114 @@
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+// A function body the parser only skipped over. It keeps the body's
+// tokens and parses them the first time anything reads the statements,
+// which is normally the function's first call, so library functions a
+// run never calls are never parsed. Passes that run before the program
+// starts chain themselves on with map() instead of forcing the parse.
+final class LazyBody extends AbstractList<Stmt> implements RandomAccess {
+    private final Token name;
+    // The tokens after the opening brace, up to and including the closing
+    // one, then EOF. Dropped once parsed.
+    private List<Token> tokens;
+    private final UnaryOperator<List<Stmt>> passes;
+    private final int firstLine;
+    private final int lastLine;
+    private volatile List<Stmt> statements;
+    // Set once the body has failed to parse, so later reads report the
+    // error again without printing the parser's messages a second time.
+    private boolean failed;
+
+    LazyBody(Token name, List<Token> tokens) {
+        this(name, tokens, UnaryOperator.identity());
+    }
+
+    private LazyBody(Token name, List<Token> tokens, UnaryOperator<List<Stmt>> passes) {
+        this.name = name;
+        this.tokens = tokens;
+        this.passes = passes;
+        this.firstLine = tokens.get(0).line;
+        this.lastLine = tokens.get(tokens.size() - 1).line;
+    }
+
+    // Applies pass to a function body now, or once it has been parsed.
+    static List<Stmt> map(List<Stmt> body, UnaryOperator<List<Stmt>> pass) {
+        if (body instanceof LazyBody lazy && !lazy.isParsed()) {
+            return new LazyBody(lazy.name, lazy.tokens,
+                    statements -> pass.apply(lazy.passes.apply(statements)));
+        }
+        return pass.apply(body);
+    }
+
+    // A body for another tree built from the same parse: still skipped if
+    // body is, so the copy parses for itself, else its statements copied.
+    static List<Stmt> copy(List<Stmt> body, UnaryOperator<List<Stmt>> copier) {
+        if (body instanceof LazyBody lazy) return lazy.copy(copier);
+        return copier.apply(body);
+    }
+
+    private synchronized List<Stmt> copy(UnaryOperator<List<Stmt>> copier) {
+        if (statements != null) return copier.apply(statements);
+        LazyBody copy = new LazyBody(name, tokens, passes);
+        copy.failed = failed;
+        return copy;
+    }
+
+    boolean isParsed() {
+        return statements != null;
+    }
+
+    // Whether the body's source takes in the line.
+    boolean spans(int line) {
+        return line >= firstLine && line <= lastLine;
+    }
+
+    // Every name the unparsed body mentions, a superset of the variables
+    // it uses.
+    Set<String> identifiers() {
+        Set<String> names = new LinkedHashSet<>();
+        for (Token token : tokens) {
+            if (token.type == TokenType.IDENTIFIER) names.add(token.lexeme);
+        }
+        return names;
+    }
+
+    private List<Stmt> statements() {
+        List<Stmt> parsed = statements;
+        return parsed != null ? parsed : parse();
+    }
+
+    private synchronized List<Stmt> parse() {
+        if (statements != null) return statements;
+
+        List<Stmt> body = failed ? null : new Parser(tokens, true).functionBody();
+        if (body == null) {
+            failed = true;
+            throw new RuntimeError(name,
+                    "Function '" + name.lexeme + "' has a syntax error.");
+        }
+        statements = passes.apply(body);
+        tokens = null;
+        return statements;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return statements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return statements().size();
+    }
+
+    @Override
+    public Iterator<Stmt> iterator() {
+        return statements().iterator();
+    }
+}
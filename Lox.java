@@ -1,14 +1,29 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // -Dlox.strict=true parses every function body before a script runs,
+    // so all syntax errors are reported up front.
+    private static final boolean STRICT = Boolean.getBoolean("lox.strict");
+    // Set while this thread parses an imported file, whose syntax errors
+    // ModuleLoader reports later, in import order.
+    private static final ThreadLocal<ModuleErrors> moduleErrors = new ThreadLocal<>();
+
+    private static final class ModuleErrors {
+        final String file;
+        final List<String> errors;
+
+        ModuleErrors(String file, List<String> errors) {
+            this.file = file;
+            this.errors = errors;
+        }
+    }
     private static final Interpreter interpreter = new Interpreter();
 
     public static void main(String[] args) throws IOException {
@@ -26,8 +41,14 @@ public class Lox {
 
     private static void runFile(String path) throws IOException {
         interpreter.setREPL(false);
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path).toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(file);
+        try {
+            run(new String(bytes, Charset.defaultCharset()), file.getParent());
+        } finally {
+            interpreter.closeResources();
+            interpreter.flushOutput();
+        }
 
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
@@ -36,33 +57,66 @@ public class Lox {
 
     private static void runPrompt() throws IOException {
         interpreter.setREPL(true);
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
+        new Repl(interpreter).run();
 
-        for (;;) {
-            System.out.print("> ");
-            run(reader.readLine());
-            hadError = false;
-        }
+        interpreter.closeResources();
+        interpreter.flushOutput();
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+    // A whole program, unlike a REPL input, can have its unused code
+    // dropped and its function bodies left unparsed until they are called.
+    // Imports are found relative to directory.
+    private static void run(String source, Path directory) {
+        List<Stmt> statements = parse(source, !STRICT);
 
         // Stop if there was a syntax error.
         if (hadError) return;
 
+        ModuleLoader.loadImports(statements, directory);
+        if (hadError) return;
+
+        statements = Optimizer.optimize(DeadCodeEliminator.eliminate(statements));
+        interpreter.setProgram(statements, source);
         interpreter.interpret(statements);
     }
 
+    // Kept apart from run() so the tokens are garbage by the time the
+    // program starts, apart from copies of the unparsed function bodies.
+    private static List<Stmt> parse(String source, boolean lazy) {
+        List<Token> tokens = ParallelScanner.scanTokens(source);
+        Parser parser = new Parser(tokens, lazy);
+        return parser.parse();
+    }
+
+    // Parses an imported file on whichever thread loads it, collecting its
+    // syntax errors, labelled with the file, instead of reporting them.
+    static List<Stmt> parseModule(String source, String file, List<String> errors) {
+        moduleErrors.set(new ModuleErrors(file, errors));
+        try {
+            List<Stmt> statements = parse(source, !STRICT);
+            return errors.isEmpty() ? Optimizer.optimize(statements) : statements;
+        } finally {
+            moduleErrors.remove();
+        }
+    }
+
+    static void reportModuleError(String error) {
+        interpreter.flushOutput();
+        System.err.println(error);
+        hadError = true;
+    }
+
     static void error(int line, String message) {
         report(line, "", message);
     }
 
     private static void report(int line, String where, String message) {
+        ModuleErrors module = moduleErrors.get();
+        if (module != null) {
+            module.errors.add("[" + module.file + " line " + line + "] Error" + where + ": " + message);
+            return;
+        }
+        interpreter.flushOutput();
         System.err.println(
                 "[line " + line + "] Error" + where + ": " + message);
         hadError = true;
@@ -77,6 +131,8 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
+        // Anything printed before the error has to reach the terminal first.
+        interpreter.flushOutput();
         System.err.println(error.getMessage() +
                 "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
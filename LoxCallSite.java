@@ -0,0 +1,134 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+// The inline cache behind one call expression. The site is linked to the
+// last callee it saw behind an identity guard: natives go straight to
+// their method handle, everything else through LoxCallable.call(). When
+// the guard fails the site checks the new callee and relinks; a site that
+// keeps seeing different callees settles on an unguarded generic path.
+// Compiled functions hold the site's invoker in a static final field, so
+// HotSpot can inline the linked target into the caller. The interpreter
+// cannot make the invoker a constant, so its calls use a plain cache of
+// the last callee that passed the checks instead. Every path checks the
+// interpreter's memory limit as soon as the call returns, since natives
+// and caches can only note that they went over it.
+final class LoxCallSite {
+    private static final int MAX_RELINKS = 8;
+    private static final MethodType TYPE = MethodType.methodType(
+            Object.class, Object.class, Interpreter.class, Object[].class);
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle GENERIC;
+    private static final MethodHandle CALL;
+    private static final MethodHandle IS_SAME;
+    private static final MethodHandle RETURNED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            RELINK = lookup.findVirtual(LoxCallSite.class, "relink", TYPE);
+            GENERIC = lookup.findVirtual(LoxCallSite.class, "generic", TYPE);
+            CALL = lookup.findStatic(LoxCallSite.class, "callAny", TYPE);
+            IS_SAME = lookup.findStatic(LoxCallSite.class, "isSame",
+                    MethodType.methodType(boolean.class, Object.class, Object.class));
+            RETURNED = lookup.findVirtual(LoxCallSite.class, "returned",
+                    TYPE.insertParameterTypes(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Token paren;
+    private final MutableCallSite site = new MutableCallSite(TYPE);
+    private final MethodHandle invoker = site.dynamicInvoker();
+    private int relinks = 0;
+    private Object checkedCallee;
+
+    LoxCallSite(Token paren) {
+        this.paren = paren;
+        site.setTarget(RELINK.bindTo(this));
+    }
+
+    // (Object callee, Interpreter, Object[] arguments)Object
+    MethodHandle invoker() {
+        return invoker;
+    }
+
+    Object call(Object callee, Interpreter interpreter, Object[] arguments) {
+        if (callee != checkedCallee) {
+            check(callee, arguments.length);
+            checkedCallee = callee;
+        }
+        Object result = callee instanceof NativeFunction
+                ? ((NativeFunction) callee).invoke(interpreter, arguments)
+                : callAny(callee, interpreter, arguments);
+        interpreter.checkMemory(paren);
+        return result;
+    }
+
+    private Object relink(Object callee, Interpreter interpreter, Object[] arguments) throws Throwable {
+        check(callee, arguments.length);
+
+        MethodHandle target = MethodHandles.foldArguments(
+                RETURNED.bindTo(this), targetFor(callee));
+        if (++relinks > MAX_RELINKS) {
+            site.setTarget(GENERIC.bindTo(this));
+        } else {
+            MethodHandle test = MethodHandles.dropArguments(
+                    IS_SAME.bindTo(callee), 1, Interpreter.class, Object[].class);
+            site.setTarget(MethodHandles.guardWithTest(test, target, RELINK.bindTo(this)));
+        }
+
+        return (Object) target.invokeExact(callee, interpreter, arguments);
+    }
+
+    private Object generic(Object callee, Interpreter interpreter, Object[] arguments) {
+        check(callee, arguments.length);
+        Object result = callee instanceof NativeFunction
+                ? ((NativeFunction) callee).invoke(interpreter, arguments)
+                : callAny(callee, interpreter, arguments);
+        interpreter.checkMemory(paren);
+        return result;
+    }
+
+    // Runs after the linked target with its result and arguments.
+    private Object returned(Object result, Object callee, Interpreter interpreter,
+                            Object[] arguments) {
+        interpreter.checkMemory(paren);
+        return result;
+    }
+
+    // Also used by FrameStack, which makes calls to Lox functions itself.
+    void check(Object callee, int argumentCount) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    argumentCount + ".");
+        }
+    }
+
+    private static MethodHandle targetFor(Object callee) {
+        if (callee instanceof NativeFunction) {
+            return MethodHandles.dropArguments(((NativeFunction) callee).invoker(), 0, Object.class);
+        }
+        return CALL;
+    }
+
+    private static Object callAny(Object callee, Interpreter interpreter, Object[] arguments) {
+        return ((LoxCallable) callee).call(interpreter, Arrays.asList(arguments));
+    }
+
+    private static boolean isSame(Object expected, Object actual) {
+        return expected == actual;
+    }
+}
@@ -3,15 +3,115 @@ import java.util.List;
 class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
+    // Made on the first call if -Dlox.memoize applies to the function.
+    private Memoized memo;
 
+    // Snapshot also builds functions around closures it has restored.
     LoxFunction(Stmt.Function declaration, Environment closure) {
-        this.closure = closure;
         this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    // The function a declaration makes when it runs in environment.
+    static LoxFunction declare(Stmt.Function declaration, Environment environment) {
+        return new LoxFunction(declaration, environment.enclosing == null
+                ? environment : capture(declaration, environment));
+    }
+
+    // Builds a flat closure: a scope holding cells for just the variables
+    // the body uses from enclosing local scopes, sitting directly on the
+    // globals, which are still looked up late. Only when the body uses a
+    // name that no scope defines yet (say, a local function declared
+    // further down), or that a scope still running will declare in front
+    // of the one defining it now, does the closure keep the whole
+    // defining scope, so it finds the name there later just as before.
+    // The same goes for a body that does not parse.
+    private static Environment capture(Stmt.Function declaration, Environment environment) {
+        Environment globals = environment;
+        while (globals.enclosing != null) globals = globals.enclosing;
+
+        FreeVariables free = FreeVariables.of(declaration);
+        // The call reports the syntax error.
+        if (free == null) return environment;
+        for (String name : free.referenced) {
+            if (!isBound(environment, name)) {
+                return environment;
+            }
+        }
+
+        Environment closure = globals;
+        for (String name : free.referenced) {
+            Environment.Cell cell = environment.capture(name);
+            if (cell == null) continue;
+            if (closure == globals) closure = new Environment(globals);
+            closure.defineCell(name, cell);
+        }
+        return closure;
+    }
+
+    // Whether the name already means the variable it will mean for as long
+    // as the closure lives.
+    private static boolean isBound(Environment environment, String name) {
+        for (Environment scope = environment; scope != null; scope = scope.enclosing) {
+            if (scope.isDefined(name)) return true;
+            if (scope.mayDeclare(name)) return false;
+        }
+        return false;
+    }
+
+    Memoized memo() {
+        return memo;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
+        Memoized memo = memoized();
+        if (memo != null) return memo.call(interpreter, arguments);
+        return invoke(interpreter, arguments);
+    }
+
+    // The cache -Dlox.memoize gives the function, or null if it has none.
+    Memoized memoized() {
+        if (Memoized.AUTOMATIC > 0 && Purity.isMemoizable(declaration)) {
+            if (memo == null) memo = new Memoized(this, Memoized.AUTOMATIC);
+            return memo;
+        }
+        return null;
+    }
+
+    // The call itself, never cached. Deep calls, compiled or not, go to
+    // the FrameStack.
+    Object invoke(Interpreter interpreter, List<Object> arguments) {
+        if (interpreter.callDepth >= FrameStack.ENTRY_DEPTH) {
+            return interpreter.frameStack.run(this, arguments.toArray());
+        }
+        interpreter.callDepth++;
+        try {
+            return invokeHere(interpreter, arguments);
+        } finally {
+            interpreter.callDepth--;
+        }
+    }
+
+    private Object invokeHere(Interpreter interpreter, List<Object> arguments) {
+        interpreter.step(declaration.name);
+        CompiledFunction compiled = declaration.compiled;
+        if (compiled != null && interpreter.mayCompile()) {
+            return callCompiled(compiled, interpreter, arguments);
+        }
+
+        if (!declaration.compileRequested
+                && interpreter.mayCompile()
+                && ++declaration.callCount >= FunctionCompiler.THRESHOLD
+                && FunctionCompiler.isEnabled()) {
+            declaration.compileRequested = true;
+            FunctionCompiler.compileLater(declaration);
+        }
+
+        FramePool frames = EscapeAnalysis.framePool(interpreter, declaration);
+        if (frames == null || frames.isEmpty()) interpreter.allocate(MemoryMeter.ENVIRONMENT);
+        Environment environment = frames != null
+                ? frames.acquire(closure) : new Environment(closure);
         for (int i = 0; i < declaration.params.size(); i++) {
             environment.define(declaration.params.get(i).lexeme,
                     arguments.get(i));
@@ -20,11 +120,53 @@ class LoxFunction implements LoxCallable {
             interpreter.executeBlock(declaration.body, environment);
         } catch (Return returnValue) {
             return returnValue.value;
+        } catch (StackOverflowError error) {
+            throw stackOverflow();
+        } finally {
+            if (frames != null) frames.release(environment);
         }
 
         return null;
     }
 
+    private Object callCompiled(CompiledFunction compiled, Interpreter interpreter,
+                                List<Object> arguments) {
+        try {
+            return compiled.call(this, interpreter, arguments);
+        } catch (StackOverflowError error) {
+            throw stackOverflow();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        }
+    }
+
+    // Caught by the innermost call, where building the error can overflow
+    // the stack again; then the next call out catches that. FrameStack
+    // raises it too, once its frames reach -Dlox.stackSize.
+    RuntimeError stackOverflow() {
+        return new RuntimeError(declaration.name,
+                "Stack overflow in " + declaration.name.lexeme + "().");
+    }
+
+    // Used by compiled bodies for variables the function does not declare.
+    Object lookUp(Token name) {
+        return closure.get(name);
+    }
+
+    void assign(Token name, Object value) {
+        closure.assign(name, value);
+    }
+
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    Environment closure() {
+        return closure;
+    }
+
     @Override
     public int arity() {
         return declaration.params.size();
@@ -34,4 +176,4 @@ class LoxFunction implements LoxCallable {
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
     }
-}                                         
\ No newline at end of file
+}
@@ -0,0 +1,212 @@
+// Lox numbers. The language has a single number type, but at runtime an
+// integral value is kept as a Long as long as a double could hold it
+// exactly (|v| <= 2^53), so counters and indices do long arithmetic. Any
+// result that is fractional, a quotient, a negative zero or too large to
+// be exact becomes a Double holding exactly what double arithmetic would
+// have produced, so the two representations are never observably
+// different: they compare, print and report their type the same way.
+//
+// Formatting output is exactly Double.toString() with the trailing ".0"
+// of integral values dropped, but the common cases are written straight
+// into the caller's builder instead of going through an intermediate
+// String that then has to be trimmed.
+final class LoxNumber {
+    static final long MAX_EXACT = 1L << 53;
+
+    // Double.toString() switches to scientific notation at 10^7, so only
+    // integral values below that print as plain digits.
+    private static final double PLAIN_INTEGRAL_LIMIT = 1e7;
+
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final Long[] CACHE = new Long[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = (long) (i + CACHE_LOW);
+        }
+    }
+
+    private LoxNumber() {}
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        if (number instanceof Long) return (Long) number;
+        return (Double) number;
+    }
+
+    // Boxes an integral result, falling back to a double once it is too big
+    // to be represented exactly.
+    static Object of(long value) {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH) return CACHE[(int) value - CACHE_LOW];
+        if (value < -MAX_EXACT || value > MAX_EXACT) return (double) value;
+        return value;
+    }
+
+    // Picks the long representation for a double when that loses nothing.
+    static Object normalize(double value) {
+        if (value >= -MAX_EXACT && value <= MAX_EXACT && value == (long) value
+                && !isNegativeZero(value)) {
+            return of((long) value);
+        }
+        return value;
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return of((Long) left + (Long) right);
+        }
+        return toDouble(left) + toDouble(right);
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return of((Long) left - (Long) right);
+        }
+        return toDouble(left) - toDouble(right);
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (Long) left;
+            long b = (Long) right;
+            long high = Math.multiplyHigh(a, b);
+            long product = a * b;
+            if ((high == 0 && product >= 0) || (high == -1 && product < 0)) {
+                // Double arithmetic gives -0 when a zero meets a negative.
+                if (product == 0 && (a < 0 || b < 0)) return -0.0;
+                return of(product);
+            }
+            return (double) a * (double) b;
+        }
+        return toDouble(left) * toDouble(right);
+    }
+
+    static double divide(Object left, Object right) {
+        return toDouble(left) / toDouble(right);
+    }
+
+    static Object modulo(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long && (Long) right != 0) {
+            long a = (Long) left;
+            long remainder = a % (Long) right;
+            if (remainder == 0 && a < 0) return -0.0;
+            return of(remainder);
+        }
+        return toDouble(left) % toDouble(right);
+    }
+
+    static Object negate(Object operand) {
+        if (operand instanceof Long) {
+            long value = (Long) operand;
+            if (value == 0) return -0.0;
+            return of(-value);
+        }
+        return -(Double) operand;
+    }
+
+    static boolean lessThan(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left < (Long) right;
+        return toDouble(left) < toDouble(right);
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left <= (Long) right;
+        return toDouble(left) <= toDouble(right);
+    }
+
+    static boolean greaterThan(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left > (Long) right;
+        return toDouble(left) > toDouble(right);
+    }
+
+    static boolean greaterEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left >= (Long) right;
+        return toDouble(left) >= toDouble(right);
+    }
+
+    // Same rules as Double.equals(): NaN equals itself, 0 and -0 differ.
+    static boolean equal(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return ((Long) left).equals(right);
+        return Double.doubleToLongBits(toDouble(left)) == Double.doubleToLongBits(toDouble(right));
+    }
+
+    static boolean isZero(Object number) {
+        if (number instanceof Long) return (Long) number == 0;
+        return (Double) number == 0;
+    }
+
+    // A hash consistent with equal().
+    static int hash(Object number) {
+        return Double.hashCode(toDouble(number));
+    }
+
+    static String format(Object number) {
+        if (number instanceof Long) return format((long) (Long) number);
+        return format((double) (Double) number);
+    }
+
+    static String format(long value) {
+        if (value > -PLAIN_INTEGRAL_LIMIT && value < PLAIN_INTEGRAL_LIMIT) {
+            return Long.toString(value);
+        }
+        return format((double) value);
+    }
+
+    static String format(double value) {
+        if (isPlainIntegral(value)) {
+            if (value == 0 && isNegativeZero(value)) return "-0";
+            return Long.toString((long) value);
+        }
+
+        StringBuilder builder = new StringBuilder(24);
+        appendTo(builder, value);
+        return builder.toString();
+    }
+
+    static void appendTo(StringBuilder builder, Object number) {
+        if (number instanceof Long) {
+            appendTo(builder, (long) (Long) number);
+        } else {
+            appendTo(builder, (double) (Double) number);
+        }
+    }
+
+    static void appendTo(StringBuilder builder, long value) {
+        if (value > -PLAIN_INTEGRAL_LIMIT && value < PLAIN_INTEGRAL_LIMIT) {
+            builder.append(value);
+        } else {
+            appendTo(builder, (double) value);
+        }
+    }
+
+    static void appendTo(StringBuilder builder, double value) {
+        if (isPlainIntegral(value)) {
+            if (value == 0 && isNegativeZero(value)) {
+                builder.append("-0");
+            } else {
+                builder.append((long) value);
+            }
+            return;
+        }
+
+        int start = builder.length();
+        builder.append(value);
+        int end = builder.length();
+        if (end - start > 2 && builder.charAt(end - 2) == '.' && builder.charAt(end - 1) == '0') {
+            builder.setLength(end - 2);
+        }
+    }
+
+    private static boolean isPlainIntegral(double value) {
+        return value > -PLAIN_INTEGRAL_LIMIT && value < PLAIN_INTEGRAL_LIMIT
+                && value == (long) value;
+    }
+
+    private static boolean isNegativeZero(double value) {
+        return Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+    }
+}
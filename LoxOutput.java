@@ -0,0 +1,101 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// The sink print statements write through. Unlike System.out it takes no
+// lock and only touches the underlying stream when its buffer fills, when
+// it is flushed or, in line-buffered mode, at the end of every line.
+class LoxOutput implements Flushable {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final OutputStream out;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private final StringBuilder number = new StringBuilder(32);
+    private boolean lineBuffered = false;
+
+    LoxOutput(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(Math.max(bufferSize, 16));
+        this.bytes = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    void setLineBuffered(boolean lineBuffered) {
+        this.lineBuffered = lineBuffered;
+        if (lineBuffered) flush();
+    }
+
+    void print(String text) {
+        int offset = 0;
+        int length = text.length();
+        while (offset < length) {
+            if (!chars.hasRemaining()) drainChars();
+            int count = Math.min(chars.remaining(), length - offset);
+            chars.put(text, offset, offset + count);
+            offset += count;
+        }
+    }
+
+    void println(String text) {
+        print(text);
+        print(LINE_SEPARATOR);
+        if (lineBuffered) flush();
+    }
+
+    // Formats the number into a reused builder and copies it into the
+    // buffer, so printing a number allocates no String.
+    void printlnNumber(Object value) {
+        number.setLength(0);
+        LoxNumber.appendTo(number, value);
+        number.append(LINE_SEPARATOR);
+
+        int length = number.length();
+        if (chars.remaining() < length) drainChars();
+        number.getChars(0, length, chars.array(), chars.position());
+        chars.position(chars.position() + length);
+        if (lineBuffered) flush();
+    }
+
+    @Override
+    public void flush() {
+        drainChars();
+        writeBytes();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // Same as System.out: output errors are not the script's problem.
+        }
+    }
+
+    private void drainChars() {
+        chars.flip();
+        for (;;) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            if (!result.isOverflow()) break;
+            writeBytes();
+        }
+        // Keep a trailing high surrogate for the next chunk.
+        chars.compact();
+    }
+
+    private void writeBytes() {
+        bytes.flip();
+        try {
+            out.write(bytes.array(), bytes.position(), bytes.remaining());
+        } catch (IOException e) {
+            // See flush().
+        }
+        bytes.clear();
+    }
+}
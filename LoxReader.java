@@ -0,0 +1,170 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// A handle that reads a file lazily through a fixed-size buffer, so scripts
+// can walk files that are far bigger than the heap.
+class LoxReader implements Closeable {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final ReadableByteChannel channel;
+    private final Charset charset;
+    private final ByteBuffer buffer;
+    private byte[] pending = new byte[256];
+    // For readChunk(), which replaces bad input the way new String() does.
+    private final CharsetDecoder decoder;
+    // The start of a character the last chunk cut off, which the next read
+    // begins with. Null if there is none.
+    private byte[] carry;
+    private boolean closed = false;
+
+    LoxReader(String name, ReadableByteChannel channel, Charset charset, int bufferSize) {
+        this.name = name;
+        this.channel = channel;
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    static LoxReader open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        return new LoxReader(path, channel, Charset.defaultCharset(), DEFAULT_BUFFER_SIZE);
+    }
+
+    // Returns the next line without its terminator, or null at the end of
+    // the input.
+    String readLine() throws IOException {
+        if (closed) return null;
+
+        int length = takeCarry();
+        boolean sawInput = length > 0;
+        while (buffer.hasRemaining() || fill()) {
+            sawInput = true;
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            int limit = buffer.limit();
+            int end = start;
+            while (end < limit && bytes[end] != '\n') end++;
+
+            if (end < limit && length == 0) {
+                // Common case: the whole line is already in the buffer.
+                buffer.position(end + 1);
+                return decode(bytes, start, end - start);
+            }
+
+            length = append(length, bytes, start, end - start);
+            if (end < limit) {
+                buffer.position(end + 1);
+                return decode(pending, 0, length);
+            }
+            buffer.position(limit);
+        }
+
+        if (!sawInput) return null;
+        return decode(pending, 0, length);
+    }
+
+    // Reads up to size more bytes of the input and returns the characters
+    // they complete, which can be none at all; null at the end of it.
+    String readChunk(int size) throws IOException {
+        if (closed || size <= 0) return null;
+
+        int carried = takeCarry();
+        int length = carried;
+        boolean atEnd = false;
+        while (length < carried + size) {
+            if (!buffer.hasRemaining() && !fill()) {
+                atEnd = true;
+                break;
+            }
+            int count = Math.min(carried + size - length, buffer.remaining());
+            length = append(length, buffer.array(), buffer.position(), count);
+            buffer.position(buffer.position() + count);
+        }
+
+        if (length == 0) return null;
+        ByteBuffer bytes = ByteBuffer.wrap(pending, 0, length);
+        CharBuffer chars = CharBuffer.allocate((int) (length * decoder.maxCharsPerByte()) + 1);
+        decoder.reset();
+        decoder.decode(bytes, chars, atEnd);
+        if (atEnd) decoder.flush(chars);
+        if (bytes.hasRemaining()) {
+            carry = Arrays.copyOfRange(pending, bytes.position(), length);
+        }
+        return chars.flip().toString();
+    }
+
+    // Returns the rest of the input, or null if there is none left.
+    String readAll() throws IOException {
+        if (closed) return null;
+
+        int length = takeCarry();
+        while (buffer.hasRemaining() || fill()) {
+            length = append(length, buffer.array(), buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+
+        if (length == 0) return null;
+        String text = new String(pending, 0, length, charset);
+        if (pending.length > buffer.capacity()) pending = new byte[256];
+        return text;
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = 0;
+        while (read == 0) {
+            read = channel.read(buffer);
+        }
+        buffer.flip();
+        return read > 0;
+    }
+
+    // Puts what the last chunk left over at the start of pending.
+    private int takeCarry() {
+        if (carry == null) return 0;
+        int length = append(0, carry, 0, carry.length);
+        carry = null;
+        return length;
+    }
+
+    private int append(int length, byte[] bytes, int offset, int count) {
+        if (length + count > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, length + count)];
+            System.arraycopy(pending, 0, grown, 0, length);
+            pending = grown;
+        }
+        System.arraycopy(bytes, offset, pending, length, count);
+        return length + count;
+    }
+
+    private String decode(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, charset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "<reader " + name + ">";
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// A handle that keeps a file open and batches writes into one buffer, so
+// emitting output record by record costs one open and a few large writes.
+class LoxWriter implements Closeable {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+    private boolean closed = false;
+
+    private LoxWriter(String name, FileChannel channel, int bufferSize) {
+        this.name = name;
+        this.channel = channel;
+        this.encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    static LoxWriter open(String path, boolean append, int bufferSize) throws IOException {
+        OpenOption[] options = append
+                ? new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND}
+                : new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING};
+        return new LoxWriter(path, FileChannel.open(Paths.get(path), options), bufferSize);
+    }
+
+    void write(String text) throws IOException {
+        if (closed) throw new IOException("Writer is closed.");
+
+        CharBuffer chars = CharBuffer.wrap(text);
+        for (;;) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (!result.isOverflow()) break;
+            drain();
+        }
+        encoder.reset();
+    }
+
+    void flush() throws IOException {
+        if (closed) return;
+        drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            drain();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<writer " + name + ">";
+    }
+}
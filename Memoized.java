@@ -0,0 +1,133 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// A function whose results are cached by the arguments they were worked
+// out from, compared the way == compares them, keeping the most recently
+// used maxEntries. The memoize() native wraps any function in one; with
+// -Dlox.memoize set to a cache size, a LoxFunction keeps one of its own
+// if Purity finds it safe. A call that fails is not cached, and a cached
+// one takes no step.
+final class Memoized implements LoxCallable {
+    static final int AUTOMATIC = Integer.getInteger("lox.memoize", 0);
+    // What cached() returns for arguments it has no result for.
+    static final Object MISS = new Object();
+
+    private final LoxCallable function;
+    private final int maxEntries;
+    private final Map<Arguments, Object> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    Memoized(LoxCallable function, int maxEntries) {
+        this.function = function;
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Arguments, Object> eldest) {
+                return size() > Memoized.this.maxEntries;
+            }
+        };
+    }
+
+    LoxCallable function() {
+        return function;
+    }
+
+    int maxEntries() {
+        return maxEntries;
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    // Every cached call, its arguments and result, for MemoryMeter.
+    void forEachEntry(BiConsumer<Object[], Object> action) {
+        cache.forEach((arguments, result) -> action.accept(arguments.values, result));
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] values = arguments.toArray();
+        Object result = cached(values);
+        if (result != MISS) return result;
+
+        // Calling the function itself would find its own cache again.
+        result = function instanceof LoxFunction loxFunction
+                ? loxFunction.invoke(interpreter, arguments)
+                : function.call(interpreter, arguments);
+        remember(values, result, interpreter);
+        return result;
+    }
+
+    // The two halves of call(), for FrameStack, which runs the function
+    // between them.
+    Object cached(Object[] arguments) {
+        Arguments key = new Arguments(arguments);
+        Object result = cache.get(key);
+        if (result != null || cache.containsKey(key)) {
+            hits++;
+            return result;
+        }
+        misses++;
+        return MISS;
+    }
+
+    void remember(Object[] arguments, Object result, Interpreter interpreter) {
+        cache.put(new Arguments(arguments), result);
+        interpreter.allocate(MemoryMeter.CACHE_ENTRY);
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    // Hashes numbers by value, so 2 and 2.0 share an entry as they are ==.
+    private static final class Arguments {
+        final Object[] values;
+        private final int hash;
+
+        Arguments(Object[] values) {
+            this.values = values;
+            int hash = 1;
+            for (Object value : values) {
+                hash = 31 * hash + (LoxNumber.isNumber(value)
+                        // Adding 0.0 turns -0.0, which == 0, into 0.0.
+                        ? Double.hashCode(LoxNumber.toDouble(value) + 0.0)
+                        : value == null ? 0 : value.hashCode());
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Arguments arguments)) return false;
+            if (arguments.values.length != values.length) return false;
+            for (int i = 0; i < values.length; i++) {
+                if (!Interpreter.isEqual(values[i], arguments.values[i])) return false;
+            }
+            return true;
+        }
+    }
+}
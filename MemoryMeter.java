@@ -0,0 +1,76 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Estimates how many bytes a script holds: everything reachable from the
+// scopes Interpreter.forEachScope() hands out, at rough sizes for a 64-bit
+// JVM with compressed pointers. Natives, readers and writers count for
+// nothing. Only run once the interpreter's running charge says a script
+// may be over its memory limit, since it walks the whole heap of the
+// script.
+final class MemoryMeter {
+    // A String and its byte array, before the characters, which take one
+    // byte each when they are all Latin-1.
+    static final long STRING = 40;
+    // A scope with its arrays of eight slots, and what each variable adds
+    // once those are full or the scope keeps a map.
+    static final long ENVIRONMENT = 120;
+    static final long VARIABLE = 16;
+    static final long FUNCTION = 24;
+    static final long CELL = 16;
+    static final long NUMBER = 16;
+    // A Memoized with its map, and each entry there with its key.
+    static final long MEMOIZED = 72;
+    static final long CACHE_ENTRY = 80;
+
+    private MemoryMeter() {}
+
+    static long sizeOf(String string) {
+        return STRING + string.length();
+    }
+
+    static long measure(Interpreter interpreter) {
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        interpreter.forEachScope(pending::push);
+
+        long total = 0;
+        while (!pending.isEmpty()) {
+            Object value = pending.pop();
+            if (value instanceof Boolean || seen.put(value, Boolean.TRUE) != null) continue;
+
+            if (value instanceof String string) {
+                total += sizeOf(string);
+            } else if (LoxNumber.isNumber(value)) {
+                total += NUMBER;
+            } else if (value instanceof Environment environment) {
+                total += ENVIRONMENT;
+                if (environment.enclosing != null) pending.push(environment.enclosing);
+                long[] variables = {0};
+                environment.forEachSlot((name, slot) -> {
+                    variables[0]++;
+                    if (slot != null) pending.push(slot);
+                });
+                total += Math.max(0, variables[0] - 8) * VARIABLE;
+            } else if (value instanceof Environment.Cell cell) {
+                total += CELL;
+                if (cell.value != null) pending.push(cell.value);
+            } else if (value instanceof LoxFunction function) {
+                total += FUNCTION;
+                pending.push(function.closure());
+                if (function.memo() != null) pending.push(function.memo());
+            } else if (value instanceof Memoized memoized) {
+                total += MEMOIZED + memoized.size() * CACHE_ENTRY;
+                pending.push(memoized.function());
+                memoized.forEachEntry((arguments, result) -> {
+                    for (Object argument : arguments) {
+                        if (argument != null) pending.push(argument);
+                    }
+                    if (result != null) pending.push(result);
+                });
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds, reads and parses the files a program imports. Before a program
+// runs, its whole import graph is loaded at once: each file is read,
+// scanned and parsed on the common fork-join pool, and the files it
+// imports start loading as soon as its imports are known. Syntax errors
+// are then reported in import order, as if the files had been loaded one
+// after another.
+//
+// Parsed modules stay cached for the life of the process, keyed by path,
+// and are reused until the file's modification time changes, so repeated
+// imports in the REPL cost one stat each. A cached tree is never run:
+// each interpreter runs its own copy, made by AstCopier, since running a
+// tree caches per-run state on its nodes.
+final class ModuleLoader {
+    private static final Map<Path, Module> cache = new ConcurrentHashMap<>();
+
+    static final class Module {
+        final Path path;
+        final FileTime modified;
+        final List<Stmt> statements;
+        // The files this one imports, in order.
+        final List<Path> imports = new ArrayList<>();
+        // Syntax errors, already formatted, reported each time it is loaded.
+        final List<String> errors;
+
+        Module(Path path, FileTime modified, List<Stmt> statements, List<String> errors) {
+            this.path = path;
+            this.modified = modified;
+            this.statements = statements;
+            this.errors = errors;
+        }
+    }
+
+    private ModuleLoader() {}
+
+    // Resolves the imports of a program whose relative paths start from
+    // directory and loads everything it imports, directly or not. Any
+    // errors have been reported when this returns.
+    static void loadImports(List<Stmt> statements, Path directory) {
+        List<Path> roots = resolve(statements, directory);
+        if (roots.isEmpty()) return;
+
+        Map<Path, CompletableFuture<Module>> loading = new ConcurrentHashMap<>();
+        for (Path path : roots) start(path, loading);
+        // Each module starts loading its imports before it completes, so
+        // once everything started so far is done, nothing else will start.
+        int started;
+        do {
+            started = loading.size();
+            CompletableFuture.allOf(loading.values().toArray(new CompletableFuture<?>[0])).join();
+        } while (loading.size() != started);
+
+        report(roots, loading, new HashSet<>());
+    }
+
+    // The module at path, parsed again only if the file has changed. Its
+    // errors are reported if it has any.
+    static Module load(Path path) {
+        Module module = loadModule(path);
+        for (String error : module.errors) Lox.reportModuleError(error);
+        return module;
+    }
+
+    private static void start(Path path, Map<Path, CompletableFuture<Module>> loading) {
+        loading.computeIfAbsent(path, key -> CompletableFuture.supplyAsync(() -> {
+            Module module = loadModule(key);
+            for (Path imported : module.imports) start(imported, loading);
+            return module;
+        }));
+    }
+
+    private static void report(List<Path> paths, Map<Path, CompletableFuture<Module>> loading,
+                               Set<Path> reported) {
+        for (Path path : paths) {
+            if (!reported.add(path)) continue;
+            Module module = loading.get(path).join();
+            for (String error : module.errors) Lox.reportModuleError(error);
+            report(module.imports, loading, reported);
+        }
+    }
+
+    // Like load(), but leaves the errors to the caller.
+    static Module loadModule(Path path) {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return unreadable(path);
+        }
+        Module cached = cache.get(path);
+        if (cached != null && cached.modified.equals(modified)) return cached;
+
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        } catch (IOException e) {
+            return unreadable(path);
+        }
+
+        List<String> errors = new ArrayList<>();
+        List<Stmt> statements = Lox.parseModule(source, path.getFileName().toString(), errors);
+        Module module = new Module(path, modified, statements, errors);
+        module.imports.addAll(resolve(statements, path.getParent()));
+        cache.put(path, module);
+        return module;
+    }
+
+    private static Module unreadable(Path path) {
+        List<String> errors = new ArrayList<>();
+        errors.add("[" + path.getFileName() + "] Error: Cannot read " + path + ".");
+        return new Module(path, null, new ArrayList<>(), errors);
+    }
+
+    private static List<Path> resolve(List<Stmt> statements, Path directory) {
+        List<Path> paths = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Import importStmt) {
+                String path = (String) importStmt.path.literal;
+                importStmt.resolved = directory.resolve(path).toAbsolutePath().normalize();
+                paths.add(importStmt.resolved);
+            }
+        }
+        return paths;
+    }
+}
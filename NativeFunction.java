@@ -0,0 +1,83 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+
+// A built-in function backed by one of the static methods in Natives.
+// Every native shares this one class, and call sites can link straight to
+// its method handle instead of dispatching through LoxCallable.call().
+// Adapting a method handle to that shape costs more than everything else
+// the interpreter does at startup, so it is only done on the first call.
+final class NativeFunction implements LoxCallable {
+    private final String name;
+    private final Method method;
+    private final int arity;
+    // (Interpreter, Object[])Object, spreading the array into the
+    // native's own parameters. Built by invoker(); a race builds an
+    // equivalent handle twice.
+    private MethodHandle invoker;
+
+    NativeFunction(Method method) {
+        Class<?>[] parameters = method.getParameterTypes();
+        boolean takesInterpreter = parameters.length > 0 && parameters[0] == Interpreter.class;
+
+        this.name = method.getName();
+        this.method = method;
+        this.arity = takesInterpreter ? parameters.length - 1 : parameters.length;
+    }
+
+    MethodHandle invoker() {
+        MethodHandle handle = invoker;
+        if (handle == null) {
+            handle = adapt(method);
+            invoker = handle;
+        }
+        return handle;
+    }
+
+    private static MethodHandle adapt(Method method) {
+        MethodHandle target;
+        try {
+            target = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        MethodType type = target.type();
+        if (type.parameterCount() == 0 || type.parameterType(0) != Interpreter.class) {
+            target = MethodHandles.dropArguments(target, 0, Interpreter.class);
+        }
+
+        int arity = target.type().parameterCount() - 1;
+        return target
+                .asType(MethodType.genericMethodType(arity).insertParameterTypes(0, Interpreter.class))
+                .asSpreader(Object[].class, arity);
+    }
+
+    Object invoke(Interpreter interpreter, Object[] arguments) {
+        try {
+            return (Object) invoker().invokeExact(interpreter, arguments);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        }
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return invoke(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    String name() {
+        return name;
+    }
+
+    @Override
+    public String toString() { return "<native fn>"; }
+}
@@ -0,0 +1,387 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The built-in functions. Each one is a static method named after the
+// global it is bound to; its parameters are the Lox arguments, optionally
+// preceded by the calling Interpreter. Interpreter() wraps them all in
+// NativeFunctions, which call them through method handles.
+final class Natives {
+    private Natives() {}
+
+    static void defineAll(Environment globals) {
+        for (Method method : Natives.class.getDeclaredMethods()) {
+            if (!Modifier.isPublic(method.getModifiers())) continue;
+            globals.define(method.getName(), new NativeFunction(method));
+        }
+    }
+
+    // The native bound to name, or null if there is none.
+    static NativeFunction get(String name) {
+        for (Method method : Natives.class.getDeclaredMethods()) {
+            if (Modifier.isPublic(method.getModifiers()) && method.getName().equals(name)) {
+                return new NativeFunction(method);
+            }
+        }
+        return null;
+    }
+
+    public static Object newFile(Object path) {
+        try {
+            File myFile = new File(path.toString());
+            return myFile.createNewFile();
+        } catch (IOException e) {
+            return e.getCause().toString();
+        }
+    }
+
+    public static String getFile(Interpreter interpreter, Object path) {
+        String fileName = path.toString();
+        try {
+            // Checked before reading, so a file far over the memory limit
+            // is never loaded at all.
+            if (!interpreter.allocate(MemoryMeter.STRING + Files.size(Paths.get(fileName)))) {
+                return null;
+            }
+            byte[] bytes = Files.readAllBytes(Paths.get(fileName));
+            return new String(bytes, Charset.defaultCharset());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static LoxReader openReader(Interpreter interpreter, Object path) {
+        try {
+            return interpreter.track(LoxReader.open(path.toString()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static String readLine(Interpreter interpreter, Object reader) {
+        if (!(reader instanceof LoxReader)) return null;
+        try {
+            return charge(interpreter, ((LoxReader) reader).readLine());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static String readChunk(Interpreter interpreter, Object reader, Object size) {
+        if (!(reader instanceof LoxReader)) return null;
+        if (!LoxNumber.isNumber(size)) return null;
+        try {
+            return charge(interpreter,
+                    ((LoxReader) reader).readChunk((int) LoxNumber.toDouble(size)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static LoxWriter openWriter(Interpreter interpreter, Object path, Object mode) {
+        return openWriter(interpreter, path, mode, LoxWriter.DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LoxWriter openBufferedWriter(Interpreter interpreter, Object path,
+                                               Object mode, Object bufferSize) {
+        if (!LoxNumber.isNumber(bufferSize)) return null;
+        return openWriter(interpreter, path, mode, (int) LoxNumber.toDouble(bufferSize));
+    }
+
+    private static LoxWriter openWriter(Interpreter interpreter, Object path,
+                                        Object mode, int bufferSize) {
+        boolean append;
+        if ("w".equals(mode)) {
+            append = false;
+        } else if ("a".equals(mode)) {
+            append = true;
+        } else {
+            return null;
+        }
+
+        try {
+            return interpreter.track(LoxWriter.open(path.toString(), append, bufferSize));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static boolean write(Interpreter interpreter, Object writer, Object value) {
+        if (!(writer instanceof LoxWriter)) return false;
+        try {
+            ((LoxWriter) writer).write(interpreter.stringify(value));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean writeLine(Interpreter interpreter, Object writer, Object value) {
+        if (!(writer instanceof LoxWriter)) return false;
+        try {
+            ((LoxWriter) writer).write(interpreter.stringify(value));
+            ((LoxWriter) writer).write("\n");
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean flushWriter(Object writer) {
+        if (!(writer instanceof LoxWriter)) return false;
+        try {
+            ((LoxWriter) writer).flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean close(Interpreter interpreter, Object handle) {
+        if (!(handle instanceof Closeable)) return false;
+        try {
+            interpreter.untrack(handle);
+            ((Closeable) handle).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean deleteFile(Object path) {
+        File myObj = new File(path.toString());
+        return myObj.delete();
+    }
+
+    public static boolean writeFile(Object path, Object text) {
+        try {
+            String fileName = path.toString();
+            FileWriter fileWriter = new FileWriter(fileName);
+            fileWriter.write(text.toString());
+            fileWriter.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static Object runCommand(Interpreter interpreter, Object command) {
+        try {
+            Process process = Runtime.getRuntime().exec("ls /home/mkyong/");
+            StringBuilder output = new StringBuilder();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()));
+
+            interpreter.print(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line + "\n");
+            }
+
+            return output;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static boolean snapshot(Interpreter interpreter, Object path) {
+        try {
+            return Snapshot.save(interpreter, Paths.get(path.toString()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean restore(Interpreter interpreter, Object path) {
+        try {
+            return Snapshot.restore(interpreter, Paths.get(path.toString()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static double time() {
+        return (double)System.currentTimeMillis() / 1000.0;
+    }
+
+    public static String input(Interpreter interpreter) {
+        interpreter.flushOutput();
+        try {
+            return charge(interpreter, interpreter.stdin().readLine());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static String readAll(Interpreter interpreter) {
+        interpreter.flushOutput();
+        try {
+            return charge(interpreter, interpreter.stdin().readAll());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static LoxReader readLines(Interpreter interpreter) {
+        interpreter.flushOutput();
+        return interpreter.stdin();
+    }
+
+    public static Object flush(Interpreter interpreter) {
+        interpreter.flushOutput();
+        return null;
+    }
+
+    public static String type(Object value) {
+        if (LoxNumber.isNumber(value)) {
+            return "Number";
+        } else if (value instanceof Boolean) {
+            return "Bool";
+        } else if (value.toString().startsWith("<fn")) {
+            return value.toString();
+        }
+
+        return "String";
+    }
+
+    public static Object number(Object value) {
+        try {
+            return LoxNumber.normalize(Double.parseDouble(value.toString()));
+        } catch (Exception exception) {
+            return null;
+        }
+    }
+
+    public static String string(Interpreter interpreter, Object value) {
+        return charge(interpreter, interpreter.stringify(value));
+    }
+
+    public static boolean bool(Object value) {
+        return Boolean.parseBoolean(value.toString());
+    }
+
+    public static boolean sleep(Object seconds) {
+        try {
+            Double time = Double.parseDouble(seconds.toString());
+            TimeUnit.SECONDS.sleep(time.longValue());
+            return true;
+        } catch (NumberFormatException | InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The text natives take Java regular expressions and return nil for
+    // anything but strings and valid patterns.
+
+    public static Object length(Object text) {
+        if (!(text instanceof String)) return null;
+        return LoxNumber.of(((String) text).length());
+    }
+
+    // The characters from start up to but not including end, or nil if
+    // those are not within the text.
+    public static String substring(Interpreter interpreter, Object text, Object start, Object end) {
+        if (!(text instanceof String string)) return null;
+        if (!LoxNumber.isNumber(start) || !LoxNumber.isNumber(end)) return null;
+        double from = LoxNumber.toDouble(start);
+        double to = LoxNumber.toDouble(end);
+        if (from != (int) from || to != (int) to) return null;
+        if (from < 0 || to > string.length() || from > to) return null;
+        return charge(interpreter, string.substring((int) from, (int) to));
+    }
+
+    // Whether the pattern matches the whole text.
+    public static Object match(Interpreter interpreter, Object text, Object regex) {
+        Pattern pattern = pattern(interpreter, text, regex);
+        if (pattern == null) return null;
+        return pattern.matcher((String) text).matches();
+    }
+
+    // The first match of the pattern in the text, or what its first group
+    // matched if it has groups; nil if there is none.
+    public static String find(Interpreter interpreter, Object text, Object regex) {
+        Pattern pattern = pattern(interpreter, text, regex);
+        if (pattern == null) return null;
+        Matcher matcher = pattern.matcher((String) text);
+        if (!matcher.find()) return null;
+        return charge(interpreter, matcher.group(matcher.groupCount() > 0 ? 1 : 0));
+    }
+
+    // Every match replaced, with $1 and so on standing for the groups.
+    public static String replace(Interpreter interpreter, Object text, Object regex,
+                                 Object replacement) {
+        Pattern pattern = pattern(interpreter, text, regex);
+        if (pattern == null || !(replacement instanceof String)) return null;
+        try {
+            return charge(interpreter,
+                    pattern.matcher((String) text).replaceAll((String) replacement));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // A $ or \ in the replacement with nothing valid after it.
+            return null;
+        }
+    }
+
+    // Field index, counting from 0, of the text cut around every match of
+    // the pattern, or nil past the last field. Empty fields count, so
+    // split("a,,b", ",", 1) is "".
+    public static String split(Interpreter interpreter, Object text, Object regex, Object index) {
+        Pattern pattern = pattern(interpreter, text, regex);
+        if (pattern == null || !LoxNumber.isNumber(index)) return null;
+        String[] fields = interpreter.patterns.split((String) text, pattern);
+        double field = LoxNumber.toDouble(index);
+        if (field != (int) field || field < 0 || field >= fields.length) return null;
+        return charge(interpreter, fields[(int) field]);
+    }
+
+    private static Pattern pattern(Interpreter interpreter, Object text, Object regex) {
+        if (!(text instanceof String) || !(regex instanceof String)) return null;
+        return interpreter.patterns.get((String) regex);
+    }
+
+    // A function that caches its results for the last maxEntries distinct
+    // arguments it was called with, or nil if fn is not a function.
+    public static Object memoize(Object fn, Object maxEntries) {
+        if (!(fn instanceof LoxCallable) || !LoxNumber.isNumber(maxEntries)) return null;
+        int entries = (int) LoxNumber.toDouble(maxEntries);
+        if (entries < 1) return null;
+        return new Memoized((LoxCallable) fn, entries);
+    }
+
+    // How many calls to a memoized function its cache answered, or nil if
+    // it has none.
+    public static Object cacheHits(Object fn) {
+        Memoized memoized = memoized(fn);
+        return memoized == null ? null : LoxNumber.of(memoized.hits());
+    }
+
+    public static Object cacheMisses(Object fn) {
+        Memoized memoized = memoized(fn);
+        return memoized == null ? null : LoxNumber.of(memoized.misses());
+    }
+
+    private static Memoized memoized(Object fn) {
+        if (fn instanceof Memoized memoized) return memoized;
+        if (fn instanceof LoxFunction function) return function.memo();
+        return null;
+    }
+
+    // Natives have no token to report an error at, so a string over the
+    // memory limit is still returned and the script stops at its next step.
+    private static String charge(Interpreter interpreter, String string) {
+        if (string != null) interpreter.allocate(MemoryMeter.sizeOf(string));
+        return string;
+    }
+}
@@ -0,0 +1,447 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Rewrites a parsed program before it runs. Turn it off with
+// -Dlox.optimize=false.
+//
+// Loop-invariant code motion: a pure expression (no calls, no
+// assignments) inside a while or do-while loop is invariant when the loop
+// declares and assigns none of its variables and makes no calls, since a
+// call could reassign anything it has closed over. Such an expression is
+// wrapped in a Hoisted node belonging to the outermost loop it is
+// invariant in. The node is evaluated the first time it is reached and
+// then reuses that value until the loop starts again. Hoisting lazily
+// instead of into a temporary before the loop means a loop that never
+// reaches the expression never evaluates it, and a runtime error in it
+// still happens where it used to.
+//
+// Strength reduction: x ** 2 becomes x * x when x is a variable, and
+// division by a power-of-two literal becomes multiplication by its exact
+// reciprocal. Both give the same value and the same errors. x * 2 is left
+// alone: x + x would concatenate strings instead of rejecting them.
+//
+// Fusion: the shapes hot loops are made of become single nodes that read
+// their variables directly instead of dispatching to a node per operand.
+// i < n and i < 10 become CompareVariable, i += k and i++ become
+// IncrementVariable, and x = x + y becomes AccumulateVariable. They run the
+// same checks in the same order, so errors and their messages are the same.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    static final boolean ENABLED = !"false".equals(System.getProperty("lox.optimize"));
+
+    private static class Loop {
+        final Set<String> written = new HashSet<>();
+        boolean hasCall = false;
+        final List<Expr.Hoisted> hoisted = new ArrayList<>();
+    }
+
+    // Innermost loop first.
+    private Deque<Loop> loops = new ArrayDeque<>();
+
+    static List<Stmt> optimize(List<Stmt> statements) {
+        if (!ENABLED) return statements;
+        return new Optimizer().statements(statements);
+    }
+
+    private List<Stmt> statements(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            optimized.add(statement(statement));
+        }
+        return optimized;
+    }
+
+    private Stmt statement(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr expression(Expr expr) {
+        if (expr == null) return null;
+
+        Loop owner = invariantLoop(expr);
+        if (owner != null) {
+            // Parts of it can only move further out than the whole.
+            Deque<Loop> enclosingLoops = loops;
+            loops = outside(owner);
+            Expr.Hoisted hoisted = new Expr.Hoisted(expr.accept(this));
+            loops = enclosingLoops;
+
+            owner.hoisted.add(hoisted);
+            return hoisted;
+        }
+        return expr.accept(this);
+    }
+
+    private Deque<Loop> outside(Loop loop) {
+        Deque<Loop> outer = new ArrayDeque<>();
+        boolean found = false;
+        for (Loop candidate : loops) {
+            if (found) outer.add(candidate);
+            if (candidate == loop) found = true;
+        }
+        return outer;
+    }
+
+    // The outermost enclosing loop expr is worth hoisting out of, if any.
+    private Loop invariantLoop(Expr expr) {
+        if (loops.isEmpty() || !isOperation(expr)) return null;
+
+        Set<String> reads = new HashSet<>();
+        if (!isPure(expr, reads)) return null;
+
+        Iterator<Loop> outermostFirst = loops.descendingIterator();
+        while (outermostFirst.hasNext()) {
+            Loop loop = outermostFirst.next();
+            if (loop.hasCall) continue;
+            boolean invariant = true;
+            for (String name : reads) {
+                if (loop.written.contains(name)) {
+                    invariant = false;
+                    break;
+                }
+            }
+            if (invariant) return loop;
+        }
+        return null;
+    }
+
+    // Only computations are worth caching, not single loads.
+    private static boolean isOperation(Expr expr) {
+        while (expr instanceof Expr.Grouping grouping) expr = grouping.expression;
+        return expr instanceof Expr.Binary || expr instanceof Expr.Unary
+                || expr instanceof Expr.Logical;
+    }
+
+    private static boolean isPure(Expr expr, Set<String> reads) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Variable variable) {
+            reads.add(variable.name.lexeme);
+            return true;
+        }
+        if (expr instanceof Expr.Grouping grouping) return isPure(grouping.expression, reads);
+        if (expr instanceof Expr.Unary unary) return isPure(unary.right, reads);
+        if (expr instanceof Expr.Binary binary) {
+            return isPure(binary.left, reads) && isPure(binary.right, reads);
+        }
+        if (expr instanceof Expr.Logical logical) {
+            return isPure(logical.left, reads) && isPure(logical.right, reads);
+        }
+        if (expr instanceof Expr.Hoisted hoisted) return isPure(hoisted.expression, reads);
+        if (expr instanceof Expr.CompareVariable compare) {
+            reads.add(compare.name.lexeme);
+            if (compare.other != null) reads.add(compare.other.lexeme);
+            return true;
+        }
+        return false;
+    }
+
+    private Loop analyzeLoop(Expr condition, Stmt body) {
+        Loop loop = new Loop();
+        scan(condition, loop);
+        scan(body, loop);
+        return loop;
+    }
+
+    private static void scan(Stmt stmt, Loop loop) {
+        if (stmt instanceof Stmt.Expression expression) {
+            scan(expression.expression, loop);
+        } else if (stmt instanceof Stmt.Print print) {
+            scan(print.expression, loop);
+        } else if (stmt instanceof Stmt.Var var) {
+            loop.written.add(var.name.lexeme);
+            scan(var.initializer, loop);
+        } else if (stmt instanceof Stmt.Block block) {
+            for (Stmt statement : block.statements) scan(statement, loop);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            scan(ifStmt.condition, loop);
+            scan(ifStmt.thenBranch, loop);
+            scan(ifStmt.elseBranch, loop);
+        } else if (stmt instanceof Stmt.Ternary ternary) {
+            scan(ternary.condition, loop);
+            scan(ternary.ifTrue, loop);
+            scan(ternary.ifFalse, loop);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            scan(whileStmt.condition, loop);
+            scan(whileStmt.body, loop);
+        } else if (stmt instanceof Stmt.DoWhile doWhile) {
+            scan(doWhile.condition, loop);
+            scan(doWhile.body, loop);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            scan(returnStmt.value, loop);
+        } else if (stmt instanceof Stmt.Function function) {
+            // The body only runs if something calls it.
+            loop.written.add(function.name.lexeme);
+        }
+    }
+
+    private static void scan(Expr expr, Loop loop) {
+        if (expr instanceof Expr.Assign assign) {
+            loop.written.add(assign.name.lexeme);
+            scan(assign.value, loop);
+        } else if (expr instanceof Expr.AssignShorthand shorthand) {
+            loop.written.add(shorthand.name.lexeme);
+            scan(shorthand.value, loop);
+        } else if (expr instanceof Expr.Call call) {
+            loop.hasCall = true;
+            scan(call.callee, loop);
+            for (Expr argument : call.arguments) scan(argument, loop);
+        } else if (expr instanceof Expr.Binary binary) {
+            scan(binary.left, loop);
+            scan(binary.right, loop);
+        } else if (expr instanceof Expr.Logical logical) {
+            scan(logical.left, loop);
+            scan(logical.right, loop);
+        } else if (expr instanceof Expr.Unary unary) {
+            scan(unary.right, loop);
+        } else if (expr instanceof Expr.Grouping grouping) {
+            scan(grouping.expression, loop);
+        } else if (expr instanceof Expr.Hoisted hoisted) {
+            scan(hoisted.expression, loop);
+        } else if (expr instanceof Expr.IncrementVariable increment) {
+            loop.written.add(increment.name.lexeme);
+        } else if (expr instanceof Expr.AccumulateVariable accumulate) {
+            loop.written.add(accumulate.name.lexeme);
+            scan(accumulate.value, loop);
+        }
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = expression(expr.value);
+        if (value instanceof Expr.Binary binary && binary.left instanceof Expr.Variable variable
+                && variable.name.lexeme.equals(expr.name.lexeme)) {
+            // Reading the variable is what can fail, so keep its token.
+            return new Expr.AccumulateVariable(variable.name, binary.operator, binary.right);
+        }
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitAssignShorthandExpr(Expr.AssignShorthand expr) {
+        Expr value = expression(expr.value);
+        if (isIncrement(expr.operator.type)) {
+            if (value instanceof Expr.Variable other) {
+                return new Expr.IncrementVariable(expr.name, expr.operator, other.name, null);
+            }
+            if (value instanceof Expr.Literal literal) {
+                return new Expr.IncrementVariable(expr.name, expr.operator, null, literal.value);
+            }
+        }
+        return new Expr.AssignShorthand(expr.name, expr.operator, value);
+    }
+
+    private static boolean isIncrement(TokenType type) {
+        return type == TokenType.PLUS_EQUAL || type == TokenType.MINUS_EQUAL
+                || type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS;
+    }
+
+    // The unfused form of a fused node, for code that only knows the
+    // original shapes.
+    static Expr unfused(Expr expr) {
+        if (expr instanceof Expr.CompareVariable compare) {
+            return new Expr.Binary(new Expr.Variable(compare.name), compare.operator,
+                    operand(compare.other, compare.constant));
+        }
+        if (expr instanceof Expr.IncrementVariable increment) {
+            return new Expr.AssignShorthand(increment.name, increment.operator,
+                    operand(increment.other, increment.constant));
+        }
+        if (expr instanceof Expr.AccumulateVariable accumulate) {
+            return new Expr.Assign(accumulate.name, new Expr.Binary(
+                    new Expr.Variable(accumulate.name), accumulate.operator, accumulate.value));
+        }
+        return expr;
+    }
+
+    private static Expr operand(Token other, Object constant) {
+        return other != null ? new Expr.Variable(other) : new Expr.Literal(constant);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expression(expr.left);
+        Expr right = expression(expr.right);
+
+        if (expr.operator.type == TokenType.STAR_STAR && left instanceof Expr.Variable
+                && isLiteral(right, 2)) {
+            return new Expr.Binary(left, retyped(expr.operator, TokenType.STAR, "*"), left);
+        }
+        if (expr.operator.type == TokenType.SLASH && right instanceof Expr.Literal literal
+                && isPowerOfTwo(literal.value)) {
+            double reciprocal = 1.0 / LoxNumber.toDouble(literal.value);
+            return new Expr.Binary(left, retyped(expr.operator, TokenType.STAR, "*"),
+                    new Expr.Literal(reciprocal));
+        }
+        if (isComparison(expr.operator.type) && left instanceof Expr.Variable variable) {
+            if (right instanceof Expr.Variable other) {
+                return new Expr.CompareVariable(variable.name, expr.operator, other.name, null);
+            }
+            if (right instanceof Expr.Literal literal && LoxNumber.isNumber(literal.value)) {
+                return new Expr.CompareVariable(variable.name, expr.operator, null, literal.value);
+            }
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.LESS || type == TokenType.LESS_EQUAL
+                || type == TokenType.GREATER || type == TokenType.GREATER_EQUAL;
+    }
+
+    private static boolean isLiteral(Expr expr, long value) {
+        if (!(expr instanceof Expr.Literal literal) || !LoxNumber.isNumber(literal.value)) {
+            return false;
+        }
+        return LoxNumber.toDouble(literal.value) == value;
+    }
+
+    // Whether 1 / value is exact, so multiplying by it rounds the same way
+    // as dividing by value.
+    private static boolean isPowerOfTwo(Object value) {
+        if (!LoxNumber.isNumber(value)) return false;
+        double number = Math.abs(LoxNumber.toDouble(value));
+        if (number == 0 || Double.isInfinite(number) || Double.isNaN(number)) return false;
+        if (Double.doubleToRawLongBits(number) << 12 != 0) return false;
+        return Math.getExponent(number) > Double.MIN_EXPONENT
+                && Math.getExponent(number) < Double.MAX_EXPONENT;
+    }
+
+    // Errors still report the line of the original operator.
+    private static Token retyped(Token operator, TokenType type, String lexeme) {
+        return new Token(type, lexeme, null, operator.line);
+    }
+
+    // Already fused, so already optimized.
+    @Override
+    public Expr visitAccumulateVariableExpr(Expr.AccumulateVariable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCompareVariableExpr(Expr.CompareVariable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitIncrementVariableExpr(Expr.IncrementVariable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(expression(argument));
+        }
+        return new Expr.Call(expression(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return new Expr.Grouping(expression(expr.expression));
+    }
+
+    @Override
+    public Expr visitHoistedExpr(Expr.Hoisted expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        return new Expr.Logical(expression(expr.left), expr.operator, expression(expr.right));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        return new Expr.Unary(expr.operator, expression(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(statements(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitDoWhileStmt(Stmt.DoWhile stmt) {
+        Loop loop = analyzeLoop(stmt.condition, stmt.body);
+        loops.push(loop);
+        Stmt body = statement(stmt.body);
+        Expr condition = expression(stmt.condition);
+        loops.pop();
+
+        Stmt.DoWhile optimized = new Stmt.DoWhile(stmt.keyword, condition, body);
+        if (!loop.hoisted.isEmpty()) optimized.hoisted = loop.hoisted;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(expression(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // The body runs when the function is called, outside these loops.
+        return new Stmt.Function(stmt.name, stmt.params,
+                LazyBody.map(stmt.body, body -> new Optimizer().statements(body)));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        return new Stmt.If(expression(stmt.condition),
+                statement(stmt.thenBranch), statement(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(expression(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, expression(stmt.value));
+    }
+
+    @Override
+    public Stmt visitTernaryStmt(Stmt.Ternary stmt) {
+        return new Stmt.Ternary(expression(stmt.condition),
+                statement(stmt.ifTrue), statement(stmt.ifFalse));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return new Stmt.Var(stmt.name, expression(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Loop loop = analyzeLoop(stmt.condition, stmt.body);
+        loops.push(loop);
+        Expr condition = expression(stmt.condition);
+        Stmt body = statement(stmt.body);
+        loops.pop();
+
+        Stmt.While optimized = new Stmt.While(stmt.keyword, condition, body);
+        if (!loop.hoisted.isEmpty()) optimized.hoisted = loop.hoisted;
+        return optimized;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Scans a large source in chunks on the common fork-join pool. A quick
+// pre-pass finds the newlines the scanner would reach outside any string
+// or comment; the source is split after some of them, about
+// -Dlox.scanChunkSize characters apart (1M by default). Every newline
+// before such a point has been counted, so the line there is simply one
+// more than the newlines before it. The tokens and errors come out
+// exactly as one Scanner over the whole source would produce them.
+final class ParallelScanner {
+    private static final int CHUNK_SIZE = Integer.getInteger("lox.scanChunkSize", 1 << 20);
+
+    private ParallelScanner() {}
+
+    static List<Token> scanTokens(String source) {
+        if (source.length() < 2 * CHUNK_SIZE || Runtime.getRuntime().availableProcessors() < 2) {
+            return new Scanner(source).scanTokens();
+        }
+
+        List<Scanner> scanners = split(source);
+        if (scanners.size() == 1) return new Scanner(source).scanTokens();
+
+        // The pool has one thread fewer than there are processors, so this
+        // thread scans the first chunk itself.
+        List<Future<List<Token>>> chunks = new ArrayList<>();
+        for (int i = 1; i < scanners.size(); i++) {
+            Scanner scanner = scanners.get(i);
+            // Only the last chunk ends with the source, and with its EOF.
+            Callable<List<Token>> task = i == scanners.size() - 1
+                    ? scanner::scanTokens : scanner::scanChunk;
+            chunks.add(ForkJoinPool.commonPool().submit(task));
+        }
+
+        List<Token> tokens = scanners.get(0).scanChunk();
+        scanners.get(0).reportDeferredErrors();
+        for (int i = 0; i < chunks.size(); i++) {
+            tokens.addAll(result(chunks.get(i)));
+            scanners.get(i + 1).reportDeferredErrors();
+        }
+        return tokens;
+    }
+
+    private static List<Token> result(Future<List<Token>> chunk) {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // One scanner per chunk, split only where Scanner would be outside any
+    // string or comment.
+    private static List<Scanner> split(String source) {
+        List<Scanner> scanners = new ArrayList<>();
+        int length = source.length();
+        int chunkStart = 0;
+        int chunkLine = 1;
+        int line = 1;
+        int i = 0;
+        while (i < length) {
+            int skipped = Scanner.skipStringOrComment(source, i);
+            if (skipped != i) {
+                int end = skipped < 0 ? length : skipped;
+                for (; i < end; i++) {
+                    if (source.charAt(i) == '\n') line++;
+                }
+                continue;
+            }
+
+            char c = source.charAt(i++);
+            if (c == '\n') {
+                line++;
+                if (i - chunkStart >= CHUNK_SIZE && length - i >= CHUNK_SIZE) {
+                    scanners.add(new Scanner(source, chunkStart, i, chunkLine));
+                    chunkStart = i;
+                    chunkLine = line;
+                }
+            }
+        }
+        scanners.add(new Scanner(source, chunkStart, length, chunkLine));
+        return scanners;
+    }
+}
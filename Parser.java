@@ -1,21 +1,31 @@
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 
 class Parser {
     private final List<Token> tokens;
+    // Whether function bodies are left as LazyBody token ranges.
+    private final boolean lazy;
     private int current = 0;
+    private boolean hadError = false;
     private static class ParseError extends RuntimeException {}
 
     Parser(List<Token> tokens) {
+        this(tokens, false);
+    }
+
+    Parser(List<Token> tokens, boolean lazy) {
         this.tokens = tokens;
+        this.lazy = lazy;
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
         try {
             while (!isAtEnd()) {
-                statements.add(declaration());
+                statements.add(topLevelDeclaration());
             }
         } catch (ParseError parseError) {
         }
@@ -23,8 +33,27 @@ class Parser {
         return statements;
     }
 
+    // Imports are only allowed outside any block or function.
+    private Stmt topLevelDeclaration() {
+        if (!match(TokenType.IMPORT)) return declaration();
+        try {
+            return importStatement();
+        } catch (ParseError error) {
+            synchronize();
+            return null;
+        }
+    }
+
+    private Stmt importStatement() {
+        Token keyword = previous();
+        Token path = consume(TokenType.STRING, "Expect module path after 'import'.");
+        consume(TokenType.SEMICOLON, "Expect ';' after module path.");
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt declaration() {
         try {
+            if (check(TokenType.IMPORT)) throw error(peek(), "Can only import at the top level.");
             if (match(TokenType.VAR)) return varDeclaration();
             if (match(TokenType.FUN)) return function("function");
             return statement();
@@ -50,10 +79,56 @@ class Parser {
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = lazy ? skipBody(name) : block();
         return new Stmt.Function(name, parameters, body);
     }
 
+    // Finds the end of a function body, checking only that its brackets
+    // balance, and keeps its tokens for LazyBody to parse when it is first
+    // needed. Other syntax errors in it surface then, unless -Dlox.strict
+    // makes Lox parse everything up front.
+    private List<Stmt> skipBody(Token name) {
+        int start = current;
+        Deque<Token> open = new ArrayDeque<>();
+        while (!isAtEnd()) {
+            Token token = advance();
+            switch (token.type) {
+                case LEFT_BRACE:
+                case LEFT_PAREN:
+                    open.push(token);
+                    break;
+                case RIGHT_PAREN:
+                    if (open.isEmpty() || open.pop().type != TokenType.LEFT_PAREN) {
+                        throw error(token, "Unmatched ')'.");
+                    }
+                    break;
+                case RIGHT_BRACE:
+                    if (open.isEmpty()) {
+                        List<Token> body = new ArrayList<>(tokens.subList(start, current));
+                        body.add(new Token(TokenType.EOF, "", null, token.line));
+                        return new LazyBody(name, body);
+                    }
+                    Token opener = open.pop();
+                    if (opener.type != TokenType.LEFT_BRACE) {
+                        throw error(opener, "Unmatched '('.");
+                    }
+                    break;
+            }
+        }
+        throw error(peek(), "Expect '}' after block.");
+    }
+
+    // The statements of a body skipped by skipBody(), or null once a syntax
+    // error in them has been reported.
+    List<Stmt> functionBody() {
+        try {
+            List<Stmt> statements = block();
+            return hadError ? null : statements;
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
 
@@ -90,16 +165,18 @@ class Parser {
     }
 
     private Stmt doWhileStatement() {
+        Token keyword = previous();
         Stmt body = statement();
         consume(TokenType.WHILE, "Expected 'while' after do.");
         consume(TokenType.LEFT_PAREN, "Expected '(' after while.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expected ')' after condition.");
         consume(TokenType.SEMICOLON, "Expected ';' after condition.");
-        return new Stmt.DoWhile(condition, body);
+        return new Stmt.DoWhile(keyword, condition, body);
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -130,7 +207,7 @@ class Parser {
         }
 
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -140,12 +217,13 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private List<Stmt> block() {
@@ -218,7 +296,7 @@ class Parser {
             Token operator = previous();
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable) expr).name;
-                return new Expr.AssignShorthand(name, operator, new Expr.Literal(1.0));
+                return new Expr.AssignShorthand(name, operator, new Expr.Literal(LoxNumber.of(1)));
             }
 
             error(operator, "Invalid assignment target.");
@@ -226,7 +304,7 @@ class Parser {
             Token operator = previous();
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable) expr).name;
-                return new Expr.AssignShorthand(name, operator, new Expr.Literal(-1.0));
+                return new Expr.AssignShorthand(name, operator, new Expr.Literal(LoxNumber.of(-1)));
             }
             error(operator, "Invalid assignment target.");
         }
@@ -388,6 +466,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
+        hadError = true;
         Lox.error(token, message);
         return new ParseError();
     }
@@ -407,6 +486,7 @@ class Parser {
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case IMPORT:
                     return;
             }
 
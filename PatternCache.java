@@ -0,0 +1,49 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// The regular expressions a script's text natives have used, compiled
+// once each and kept for the MAX_PATTERNS most recently used, and the
+// fields of the last text split: a loop calling split() for field after
+// field of one line splits it only once.
+final class PatternCache {
+    private static final int MAX_PATTERNS = 64;
+
+    private final Map<String, Pattern> patterns =
+            new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                    return size() > MAX_PATTERNS;
+                }
+            };
+
+    private String splitText;
+    private Pattern splitPattern;
+    private String[] fields;
+
+    // The compiled regex, or null if it is not a valid one.
+    Pattern get(String regex) {
+        Pattern pattern = patterns.get(regex);
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+            patterns.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    // Every field of text around the matches of pattern, empty ones
+    // included.
+    String[] split(String text, Pattern pattern) {
+        if (text != splitText || pattern != splitPattern) {
+            fields = pattern.split(text, -1);
+            splitText = text;
+            splitPattern = pattern;
+        }
+        return fields;
+    }
+}
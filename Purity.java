@@ -0,0 +1,202 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Decides whether a function's results can be cached by its arguments:
+// whether it depends on nothing else and does nothing but work out its
+// result. The body may declare and assign locals of its own and call
+// itself and the natives in PURE_NATIVES by name. It may not print,
+// import, declare a function (whose closure must differ from call to
+// call), call anything else, or assign or even read any other variable,
+// since a global can change between calls. A native the script has
+// redefined is taken at its name. Only functions that also call
+// themselves qualify, since recursion is what solves the same
+// subproblems over and over.
+final class Purity implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+    private static final Set<String> PURE_NATIVES = Set.of("bool", "find", "length",
+            "match", "number", "replace", "split", "string", "substring", "type");
+
+    private final String name;
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+    private boolean callsItself = false;
+
+    private Purity(String name) {
+        this.name = name;
+    }
+
+    static boolean isMemoizable(Stmt.Function function) {
+        if (function.memoizable == null) {
+            Purity purity = new Purity(function.name.lexeme);
+            Set<String> params = new HashSet<>();
+            for (Token param : function.params) params.add(param.lexeme);
+            purity.scopes.push(params);
+            function.memoizable = purity.all(function.body) && purity.callsItself;
+        }
+        return function.memoizable;
+    }
+
+    private boolean all(List<Stmt> statements) {
+        scopes.push(new HashSet<>());
+        try {
+            for (Stmt statement : statements) {
+                if (!pure(statement)) return false;
+            }
+            return true;
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    private boolean pure(Stmt stmt) {
+        return stmt == null || stmt.accept(this);
+    }
+
+    private boolean pure(Expr expr) {
+        return expr == null || expr.accept(this);
+    }
+
+    private boolean isLocal(Token variable) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(variable.lexeme)) return true;
+        }
+        return false;
+    }
+
+    private boolean isReadable(Token variable) {
+        return variable == null || isLocal(variable) || variable.lexeme.equals(name)
+                || PURE_NATIVES.contains(variable.lexeme);
+    }
+
+    @Override
+    public Boolean visitAccumulateVariableExpr(Expr.AccumulateVariable expr) {
+        return isLocal(expr.name) && pure(expr.value);
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        return isLocal(expr.name) && pure(expr.value);
+    }
+
+    @Override
+    public Boolean visitAssignShorthandExpr(Expr.AssignShorthand expr) {
+        return isLocal(expr.name) && pure(expr.value);
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable callee) || isLocal(callee.name)) return false;
+        if (callee.name.lexeme.equals(name)) {
+            callsItself = true;
+        } else if (!PURE_NATIVES.contains(callee.name.lexeme)) {
+            return false;
+        }
+        for (Expr argument : expr.arguments) {
+            if (!pure(argument)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitCompareVariableExpr(Expr.CompareVariable expr) {
+        return isReadable(expr.name) && isReadable(expr.other);
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return pure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitHoistedExpr(Expr.Hoisted expr) {
+        return pure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitIncrementVariableExpr(Expr.IncrementVariable expr) {
+        return isLocal(expr.name) && isReadable(expr.other);
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return isReadable(expr.name);
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        return all(stmt.statements);
+    }
+
+    @Override
+    public Boolean visitDoWhileStmt(Stmt.DoWhile stmt) {
+        return pure(stmt.body) && pure(stmt.condition);
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return pure(stmt.expression);
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return pure(stmt.condition) && pure(stmt.thenBranch) && pure(stmt.elseBranch);
+    }
+
+    @Override
+    public Boolean visitImportStmt(Stmt.Import stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return pure(stmt.value);
+    }
+
+    @Override
+    public Boolean visitTernaryStmt(Stmt.Ternary stmt) {
+        return pure(stmt.condition) && pure(stmt.ifTrue) && pure(stmt.ifFalse);
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        if (!pure(stmt.initializer)) return false;
+        scopes.peek().add(stmt.name.lexeme);
+        return true;
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return pure(stmt.condition) && pure(stmt.body);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The interactive prompt. Input continues over several lines until it
+// ends a statement outside any bracket, string or block comment; an empty
+// line runs whatever has been typed anyway. Input ending in an if waits
+// for one more line, which runs along with it if it starts with else and
+// after it otherwise. Each input is cut into its top-level statements,
+// and each of those is scanned, parsed and optimized only the first time
+// its text appears on that line, so pasting a long program again after
+// changing one function only parses that function. ":time" reports how
+// long the last input took to scan, parse and run.
+final class Repl {
+    private static final int MAX_CACHED = 1024;
+
+    private final Interpreter interpreter;
+    // Statements by the line they start on and their text, least recently
+    // used first.
+    private final Map<String, List<Stmt>> parsed =
+            new LinkedHashMap<String, List<Stmt>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<Stmt>> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    // For ":time", about the last input.
+    private long scanNanos;
+    private long parseNanos;
+    private long executeNanos;
+    private int chunks;
+    private int reused;
+
+    Repl(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void run() throws IOException {
+        LoxReader reader = interpreter.stdin();
+        StringBuilder input = new StringBuilder();
+        // Whether input is complete but ends in an if, held to see if the
+        // next line starts an else for it.
+        boolean held = false;
+
+        for (;;) {
+            System.out.print(input.length() == 0 ? "> " : "... ");
+            String line = reader.readLine();
+            if (line == null) {
+                if (held) runInput(input);
+                break;
+            }
+
+            if (held) {
+                held = false;
+                if (line.isBlank()) {
+                    runInput(input);
+                    continue;
+                }
+                // A line of comments leaves the if waiting.
+                if (!startsWith(line, 0, "else") && skipBlank(line, 0) < line.length()) {
+                    runInput(input);
+                }
+            }
+            if (input.length() == 0 && line.trim().equals(":time")) {
+                printTimes();
+                continue;
+            }
+            input.append(line).append('\n');
+            if (!line.isBlank() && !isComplete(input)) continue;
+            if (!line.isBlank() && endsWithIf(input.toString())) {
+                held = true;
+                continue;
+            }
+
+            runInput(input);
+        }
+    }
+
+    private void runInput(StringBuilder input) {
+        run(input.toString());
+        input.setLength(0);
+        Lox.hadError = false;
+    }
+
+    private void run(String source) {
+        scanNanos = 0;
+        parseNanos = 0;
+        chunks = 0;
+        reused = 0;
+
+        List<Stmt> statements = new ArrayList<>();
+        int line = 1;
+        int start = 0;
+        for (int end : statementEnds(source)) {
+            String text = source.substring(start, end);
+            statements.addAll(parse(source, start, end, line, text));
+            line += count(text, '\n');
+            start = end;
+        }
+        executeNanos = 0;
+        if (Lox.hadError) return;
+
+        long started = System.nanoTime();
+        ModuleLoader.loadImports(statements, Paths.get("").toAbsolutePath());
+        if (!Lox.hadError) interpreter.interpret(statements);
+        executeNanos = System.nanoTime() - started;
+    }
+
+    private List<Stmt> parse(String source, int start, int end, int line, String text) {
+        chunks++;
+        String key = line + ":" + text;
+        List<Stmt> statements = parsed.get(key);
+        if (statements != null) {
+            reused++;
+            return statements;
+        }
+
+        // Only statements without syntax errors are kept.
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        long started = System.nanoTime();
+        Scanner scanner = new Scanner(source, start, end, line);
+        List<Token> tokens = scanner.scanChunk();
+        scanner.reportDeferredErrors();
+        int last = tokens.isEmpty() ? line : tokens.get(tokens.size() - 1).line;
+        tokens.add(new Token(TokenType.EOF, "", null, last));
+        long scanned = System.nanoTime();
+        scanNanos += scanned - started;
+
+        statements = Optimizer.optimize(new Parser(tokens).parse());
+        if (!Lox.hadError) parsed.put(key, statements);
+        Lox.hadError |= hadError;
+        parseNanos += System.nanoTime() - scanned;
+        return statements;
+    }
+
+    private void printTimes() {
+        System.out.printf("scan %.3f ms, parse %.3f ms, execute %.3f ms (%d of %d statements reused)%n",
+                scanNanos / 1e6, parseNanos / 1e6, executeNanos / 1e6, reused, chunks);
+    }
+
+    // Whether every bracket, string and block comment opened is closed and
+    // the input ends a statement, so "if (ready)" on a line of its own
+    // waits for its body.
+    static boolean isComplete(CharSequence input) {
+        String source = input.toString();
+        int depth = 0;
+        char last = ';';
+        int i = 0;
+        while (i < source.length()) {
+            int skipped = Scanner.skipStringOrComment(source, i);
+            if (skipped < 0) return false;
+            if (skipped != i) {
+                if (source.charAt(i) == '"') last = '"';
+                i = skipped;
+                continue;
+            }
+            char c = source.charAt(i++);
+            if (c == '(' || c == '{') depth++;
+            if (c == ')' || c == '}') depth--;
+            if (!Character.isWhitespace(c)) last = c;
+        }
+        return depth <= 0 && (last == ';' || last == '}');
+    }
+
+    // Whether the last top-level statement is an if, which an else on the
+    // next line would still belong to.
+    private static boolean endsWithIf(String source) {
+        List<Integer> ends = statementEnds(source);
+        for (int k = ends.size() - 1; k >= 0; k--) {
+            int start = skipBlank(source, k > 0 ? ends.get(k - 1) : 0);
+            // Skip what is only a trailing comment.
+            if (start < ends.get(k)) return isWord(source, start, "if");
+        }
+        return false;
+    }
+
+    private static boolean startsWith(String source, int i, String word) {
+        i = skipBlank(source, i);
+        return i < source.length() && isWord(source, i, word);
+    }
+
+    // Where the first thing from i on that is not whitespace or a comment
+    // starts, or the end of source if there is none.
+    private static int skipBlank(String source, int i) {
+        while (i < source.length()) {
+            int skipped = Scanner.skipStringOrComment(source, i);
+            if (skipped < 0) return source.length();
+            if (skipped != i && source.charAt(i) != '"') {
+                i = skipped;
+            } else if (Character.isWhitespace(source.charAt(i))) {
+                i++;
+            } else {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    // Where each top-level statement ends: after a ';' or '}' outside any
+    // bracket, unless an else or a do-while's while goes on with it. The
+    // last one is the end of the source.
+    private static List<Integer> statementEnds(String source) {
+        List<Integer> ends = new ArrayList<>();
+        int depth = 0;
+        int i = 0;
+        while (i < source.length()) {
+            int skipped = Scanner.skipStringOrComment(source, i);
+            if (skipped < 0) break;
+            if (skipped != i) {
+                i = skipped;
+                continue;
+            }
+            char c = source.charAt(i++);
+            if (c == '(' || c == '{') depth++;
+            if (c == ')' || c == '}') depth--;
+            if (depth == 0 && (c == ';' || c == '}') && !continues(source, i)) {
+                // Keep the rest of the line, like a trailing comment, with it.
+                int newline = source.indexOf('\n', i);
+                if (newline >= 0 && source.substring(i, newline).isBlank()) i = newline + 1;
+                ends.add(i);
+            }
+        }
+        if (ends.isEmpty() || ends.get(ends.size() - 1) != source.length()) {
+            ends.add(source.length());
+        }
+        return ends;
+    }
+
+    private static boolean continues(String source, int i) {
+        return startsWith(source, i, "else") || startsWith(source, i, "while");
+    }
+
+    private static boolean isWord(String source, int i, String word) {
+        if (!source.startsWith(word, i)) return false;
+        int after = i + word.length();
+        return after == source.length()
+                || !(Character.isLetterOrDigit(source.charAt(after)) || source.charAt(after) == '_');
+    }
+
+    private static int count(String text, char c) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) count++;
+        }
+        return count;
+    }
+}
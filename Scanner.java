@@ -10,6 +10,12 @@ class Scanner {
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // Where this scanner stops, which is before the end of the source when
+    // ParallelScanner gives it one chunk.
+    private final int end;
+    // Errors a chunk scanner holds back so ParallelScanner can report them
+    // in source order. Null when they go straight to Lox.
+    private final List<Runnable> deferredErrors;
     private static final Map<String, TokenType> keywords;
 
     static {
@@ -31,23 +37,79 @@ class Scanner {
         keywords.put("var",    TokenType.VAR);
         keywords.put("while",  TokenType.WHILE);
         keywords.put("do", TokenType.DO);
+        keywords.put("import", TokenType.IMPORT);
     }
 
     Scanner(String source) {
         this.source = source;
+        this.end = source.length();
+        this.deferredErrors = null;
+    }
+
+    // Scans source from offset from up to offset to, which must both be
+    // where a lexeme can start, from line onwards.
+    Scanner(String source, int from, int to, int line) {
+        this.source = source;
+        this.start = from;
+        this.current = from;
+        this.end = to;
+        this.line = line;
+        this.deferredErrors = new ArrayList<>();
     }
 
     List<Token> scanTokens() {
+        scanChunk();
+        tokens.add(new Token(TokenType.EOF, "", null, line));
+        return tokens;
+    }
+
+    // The tokens up to the end of the chunk, without an EOF.
+    List<Token> scanChunk() {
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-
-        tokens.add(new Token(TokenType.EOF, "", null, line));
         return tokens;
     }
 
+    // Where the string or comment starting at offset i ends, skipped just
+    // the way scanTokens() skips it, or i if none starts there. -1 for a
+    // string or block comment that never ends.
+    static int skipStringOrComment(String source, int i) {
+        int length = source.length();
+        char c = source.charAt(i);
+        if (c == '"') {
+            int close = source.indexOf('"', i + 1);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (c == '/' && i + 1 < length) {
+            char next = source.charAt(i + 1);
+            if (next == '/') {
+                int newline = source.indexOf('\n', i + 2);
+                return newline < 0 ? length : newline;
+            }
+            if (next == '*') {
+                // The character right after the "/*" never ends it.
+                int close = source.indexOf("*/", i + 3);
+                return close < 0 ? -1 : close + 2;
+            }
+        }
+        return i;
+    }
+
+    void reportDeferredErrors() {
+        for (Runnable error : deferredErrors) error.run();
+    }
+
+    private void error(int line, String message) {
+        if (deferredErrors != null) {
+            deferredErrors.add(() -> Lox.error(line, message));
+        } else {
+            Lox.error(line, message);
+        }
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -112,7 +174,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Are kidding me? What is this character? Character: '" + c + "'.");
+                    error(line, "Are kidding me? What is this character? Character: '" + c + "'.");
                 }
                 break;
         }
@@ -125,7 +187,12 @@ class Scanner {
         String text = source.substring(start, current);
 
         TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
+        if (type == null) {
+            // Interned so that Environment finds a name by identity instead
+            // of comparing its characters.
+            tokens.add(new Token(TokenType.IDENTIFIER, text.intern(), null, line));
+            return;
+        }
         addToken(type);
     }
 
@@ -150,11 +217,12 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER,
+                LoxNumber.normalize(Double.parseDouble(source.substring(start, current))));
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -170,7 +238,7 @@ class Scanner {
 
         // Unterminated string.
         if (isAtEnd()) {
-            Lox.error(line, "Are you kidding me? Why would you not terminate this string.");
+            error(line, "Are you kidding me? Why would you not terminate this string.");
             return;
         }
 
@@ -187,7 +255,7 @@ class Scanner {
         char c = advance();
 
         // While we still have at least 2 more chars in front of us
-        while (current + 1 <= source.length()) {
+        while (current + 1 <= end) {
             // If the next char is a new line, increment the line counter
             if (c == '\n') line++;
 
@@ -205,7 +273,7 @@ class Scanner {
         }
 
         // If we arrived here it means that we are at the end of the program and the comment isn't terminated
-        Lox.error(line,"Are you that lazy that you can't even terminate a multi line comment");
+        error(line, "Are you that lazy that you can't even terminate a multi line comment");
     }
 
     private boolean match(char expected) {
@@ -222,7 +290,7 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private char advance() {
@@ -0,0 +1,421 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Saves the globals to a file so a later run of the same script can define
+// them again instead of recomputing them:
+//
+//     if (!restore("tables.snapshot")) {
+//         ...build the tables...
+//         snapshot("tables.snapshot");
+//     }
+//
+// Numbers, strings, booleans and nil are written as they are. A function
+// is written as where its declaration is, the script or an imported file,
+// and its line, name and how many same-named declarations on that line
+// come before it, so the restored function runs the same AST node. Its
+// closure is written with it, and variables that several closures share
+// stay shared. Natives are written by name and bound to this run's
+// natives. A snapshot only restores into the script that saved it: if the
+// source, the optimizer setting or a file a saved function comes from has
+// changed since, restore() leaves the globals alone and returns false.
+final class Snapshot {
+    private static final int MAGIC = 0x4c4f5853;
+    private static final int VERSION = 1;
+    // Where a function or closure refers to the globals, or a function's
+    // declaration is in the script itself.
+    private static final int NONE = -1;
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte FUNCTION = 6;
+    private static final byte NATIVE = 7;
+    private static final byte CELL = 8;
+    // Written in place, like a plain value: copies come back as separate
+    // functions, each with an empty cache.
+    private static final byte MEMOIZED = 9;
+
+    private Snapshot() {}
+
+    // Writes the globals to path. False, leaving any earlier snapshot
+    // there, if one of them holds something other than the values above,
+    // such as an open file.
+    static boolean save(Interpreter interpreter, Path path) throws IOException {
+        Writer writer = new Writer(interpreter);
+        if (!writer.reach()) return false;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(bytes));
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    // Defines the globals saved at path. False, defining nothing, if there
+    // is no snapshot there for this script. A damaged one throws.
+    static boolean restore(Interpreter interpreter, Path path) throws IOException {
+        Map<String, Object> globals;
+        try (InputStream stream = Files.newInputStream(path)) {
+            globals = new Reader(interpreter).read(new DataInputStream(stream));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (globals == null) return false;
+
+        globals.forEach(interpreter.globals::define);
+        return true;
+    }
+
+    private static final class Writer {
+        private final Interpreter interpreter;
+        // The index of each function, closure, cell and imported file in
+        // its list below.
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<ModuleLoader.Module> sources = new ArrayList<>();
+        private final List<Environment> environments = new ArrayList<>();
+        private final List<Environment.Cell> cells = new ArrayList<>();
+        private final List<LoxFunction> functions = new ArrayList<>();
+        // Where each function's declaration is: its source, or NONE for the
+        // script, and its place among the declarations on its line.
+        private final Map<LoxFunction, int[]> declarations = new IdentityHashMap<>();
+
+        Writer(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        // Numbers every function, closure and cell the globals reach.
+        // False if they reach anything a snapshot cannot hold.
+        boolean reach() {
+            List<Object> pending = new ArrayList<>();
+            interpreter.globals.forEachSlot((name, value) -> pending.add(value));
+            while (!pending.isEmpty()) {
+                Object value = pending.remove(pending.size() - 1);
+                if (isPlain(value) || value instanceof NativeFunction) continue;
+                if (ids.containsKey(value)) continue;
+                if (value instanceof Memoized memoized) {
+                    pending.add(memoized.function());
+                    continue;
+                }
+
+                if (value instanceof LoxFunction function) {
+                    int[] declaration = locate(function.declaration());
+                    if (declaration == null) return false;
+                    declarations.put(function, declaration);
+                    number(function, functions);
+                    pending.add(function.closure());
+                } else if (value instanceof Environment environment) {
+                    if (environment == interpreter.globals) continue;
+                    number(environment, environments);
+                    pending.add(environment.enclosing);
+                    environment.forEachSlot((name, slot) -> pending.add(slot));
+                } else if (value instanceof Environment.Cell cell) {
+                    number(cell, cells);
+                    pending.add(cell.value);
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private <T> void number(T value, List<T> list) {
+            ids.put(value, list.size());
+            list.add(value);
+        }
+
+        private int[] locate(Stmt.Function declaration) {
+            int ordinal = ordinal(interpreter.program(), declaration);
+            if (ordinal >= 0) return new int[] {NONE, ordinal};
+
+            for (ModuleLoader.Module module : interpreter.importedModules()) {
+                ordinal = ordinal(interpreter.statements(module), declaration);
+                if (ordinal < 0) continue;
+                if (!ids.containsKey(module)) number(module, sources);
+                return new int[] {ids.get(module), ordinal};
+            }
+            return null;
+        }
+
+        private static int ordinal(List<Stmt> statements, Stmt.Function declaration) {
+            List<Stmt.Function> found = new ArrayList<>();
+            declarations(statements, declaration.name.line, declaration.name.lexeme, found);
+            for (int i = 0; i < found.size(); i++) {
+                if (found.get(i) == declaration) return i;
+            }
+            return -1;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(interpreter.programFingerprint());
+
+            out.writeInt(sources.size());
+            for (ModuleLoader.Module module : sources) {
+                out.writeUTF(module.path.toString());
+                out.writeLong(module.modified.toMillis());
+            }
+
+            out.writeInt(environments.size());
+            for (Environment environment : environments) {
+                out.writeInt(index(environment.enclosing));
+            }
+            out.writeInt(cells.size());
+
+            out.writeInt(functions.size());
+            for (LoxFunction function : functions) {
+                Stmt.Function declaration = function.declaration();
+                int[] location = declarations.get(function);
+                out.writeInt(location[0]);
+                out.writeInt(declaration.name.line);
+                out.writeUTF(declaration.name.lexeme);
+                out.writeInt(location[1]);
+                out.writeInt(index(function.closure()));
+            }
+
+            for (Environment environment : environments) {
+                writeScope(out, environment);
+            }
+            for (Environment.Cell cell : cells) {
+                writeValue(out, cell.value);
+            }
+            writeScope(out, interpreter.globals);
+            out.flush();
+        }
+
+        private int index(Environment environment) {
+            if (environment == null || environment == interpreter.globals) return NONE;
+            return ids.get(environment);
+        }
+
+        private void writeScope(DataOutputStream out, Environment scope) throws IOException {
+            List<String> names = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            scope.forEachSlot((name, value) -> {
+                names.add(name);
+                values.add(value);
+            });
+
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                writeValue(out, values.get(i));
+            }
+        }
+
+        private void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Long) {
+                out.writeByte(INTEGER);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                // writeUTF() stops at 64K, which a table can well outgrow.
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (value instanceof NativeFunction) {
+                out.writeByte(NATIVE);
+                out.writeUTF(((NativeFunction) value).name());
+            } else if (value instanceof Memoized memoized) {
+                out.writeByte(MEMOIZED);
+                out.writeInt(memoized.maxEntries());
+                writeValue(out, memoized.function());
+            } else if (value instanceof LoxFunction) {
+                out.writeByte(FUNCTION);
+                out.writeInt(ids.get(value));
+            } else {
+                out.writeByte(CELL);
+                out.writeInt(ids.get(value));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final Interpreter interpreter;
+        private final List<Environment> environments = new ArrayList<>();
+        private final List<Environment.Cell> cells = new ArrayList<>();
+        private final List<LoxFunction> functions = new ArrayList<>();
+
+        Reader(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        // The saved globals, or null if the snapshot is from another
+        // script or an older version of this one.
+        Map<String, Object> read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (in.readLong() != interpreter.programFingerprint()) return null;
+
+            List<List<Stmt>> sources = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ModuleLoader.Module module = ModuleLoader.loadModule(Paths.get(in.readUTF()));
+                long modified = in.readLong();
+                if (!module.errors.isEmpty() || module.modified == null
+                        || module.modified.toMillis() != modified) {
+                    return null;
+                }
+                sources.add(interpreter.statements(module));
+            }
+
+            // Closures and cells are made empty first, so the functions can
+            // be made around them before anything refers to the functions.
+            count = in.readInt();
+            List<Integer> enclosing = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                environments.add(new Environment());
+                enclosing.add(in.readInt());
+            }
+            for (int i = 0; i < count; i++) {
+                environments.get(i).enclosing = environment(enclosing.get(i));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                cells.add(new Environment.Cell(null));
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int source = in.readInt();
+                int line = in.readInt();
+                String name = in.readUTF();
+                int ordinal = in.readInt();
+                Environment closure = environment(in.readInt());
+
+                List<Stmt.Function> found = new ArrayList<>();
+                declarations(source == NONE ? interpreter.program() : get(sources, source),
+                        line, name, found);
+                if (ordinal >= found.size()) return null;
+                functions.add(new LoxFunction(found.get(ordinal), closure));
+            }
+
+            for (Environment environment : environments) {
+                readScope(in, environment);
+            }
+            for (Environment.Cell cell : cells) {
+                cell.value = readValue(in);
+            }
+            return readScope(in, null);
+        }
+
+        private Environment environment(int index) throws IOException {
+            return index == NONE ? interpreter.globals : get(environments, index);
+        }
+
+        // Fills scope, or for the globals, which are only defined once the
+        // whole snapshot has been read, returns them.
+        private Map<String, Object> readScope(DataInputStream in, Environment scope)
+                throws IOException {
+            Map<String, Object> values = new LinkedHashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                Object value = readValue(in);
+                if (scope == null) {
+                    values.put(name, value);
+                } else if (value instanceof Environment.Cell cell) {
+                    scope.defineCell(name, cell);
+                } else {
+                    scope.define(name, value);
+                }
+            }
+            return values;
+        }
+
+        private Object readValue(DataInputStream in) throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case INTEGER: return LoxNumber.of(in.readLong());
+                case DOUBLE: return in.readDouble();
+                case STRING:
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                case NATIVE:
+                    String name = in.readUTF();
+                    NativeFunction function = Natives.get(name);
+                    if (function == null) throw new IOException("No native '" + name + "'.");
+                    return function;
+                case FUNCTION: return get(functions, in.readInt());
+                case CELL: return get(cells, in.readInt());
+                case MEMOIZED:
+                    int maxEntries = in.readInt();
+                    if (maxEntries < 1 || !(readValue(in) instanceof LoxCallable callable)) {
+                        throw new IOException("Corrupt snapshot.");
+                    }
+                    return new Memoized(callable, maxEntries);
+            }
+            throw new IOException("Corrupt snapshot.");
+        }
+
+        private static <T> T get(List<T> list, int index) throws IOException {
+            if (index < 0 || index >= list.size()) throw new IOException("Corrupt snapshot.");
+            return list.get(index);
+        }
+    }
+
+    // Every declaration of a function called name on line, in tree order.
+    // Of the bodies not parsed yet, only those taking in the line are.
+    private static void declarations(List<Stmt> statements, int line, String name,
+                                     List<Stmt.Function> found) {
+        if (statements instanceof LazyBody lazy && !lazy.spans(line)) return;
+        for (Stmt statement : statements) declarations(statement, line, name, found);
+    }
+
+    private static void declarations(Stmt stmt, int line, String name,
+                                     List<Stmt.Function> found) {
+        if (stmt instanceof Stmt.Function function) {
+            if (function.name.line == line && function.name.lexeme.equals(name)) {
+                found.add(function);
+            }
+            declarations(function.body, line, name, found);
+        } else if (stmt instanceof Stmt.Block block) {
+            declarations(block.statements, line, name, found);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            declarations(ifStmt.thenBranch, line, name, found);
+            declarations(ifStmt.elseBranch, line, name, found);
+        } else if (stmt instanceof Stmt.Ternary ternary) {
+            declarations(ternary.ifTrue, line, name, found);
+            declarations(ternary.ifFalse, line, name, found);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            declarations(whileStmt.body, line, name, found);
+        } else if (stmt instanceof Stmt.DoWhile doWhile) {
+            declarations(doWhile.body, line, name, found);
+        }
+    }
+
+    private static boolean isPlain(Object value) {
+        return value == null || value instanceof Boolean || LoxNumber.isNumber(value)
+                || value instanceof String;
+    }
+}
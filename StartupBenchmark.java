@@ -0,0 +1,75 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Measures how long Lox takes from launching the JVM to the first line a
+// script prints, with the JDK's own class-data archive only and with an
+// AppCDS archive of the interpreter's classes too. Every run is a fresh
+// JVM, and the modes take turns so that drift on the machine hits them
+// alike. The first round only warms the file cache and is not counted.
+//
+//   java -cp build/lox.jar StartupBenchmark <script> [archive] [runs]
+//
+// The archive must have been dumped with the same class path, as ./lox
+// dumps build/lox.jsa for build/lox.jar.
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: StartupBenchmark <script> [archive] [runs]");
+            System.exit(64);
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("default CDS", Arrays.asList(java,
+                "-cp", System.getProperty("java.class.path"), "Lox", args[0]));
+        if (args.length > 1) {
+            modes.put("AppCDS", Arrays.asList(java, "-XX:SharedArchiveFile=" + args[1],
+                    "-cp", System.getProperty("java.class.path"), "Lox", args[0]));
+        }
+
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        Map<String, long[]> times = new LinkedHashMap<>();
+        for (String mode : modes.keySet()) times.put(mode, new long[runs]);
+        for (int i = -1; i < runs; i++) {
+            for (String mode : modes.keySet()) {
+                long elapsed = firstOutput(modes.get(mode));
+                if (i >= 0) times.get(mode)[i] = elapsed;
+            }
+        }
+
+        for (String mode : modes.keySet()) {
+            long[] sorted = times.get(mode);
+            Arrays.sort(sorted);
+            System.out.printf("%s: median %.1f ms, min %.1f ms, max %.1f ms over %d runs%n",
+                    mode, sorted[runs / 2] / 1e6, sorted[0] / 1e6,
+                    sorted[runs - 1] / 1e6, runs);
+        }
+    }
+
+    private static long firstOutput(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(new ArrayList<>(command))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long elapsed;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream()))) {
+            if (reader.readLine() == null) {
+                throw new IllegalStateException("The script printed nothing.");
+            }
+            elapsed = System.nanoTime() - start;
+            while (reader.readLine() != null) {
+                // Let it finish before the next run starts.
+            }
+        }
+        process.waitFor();
+        return elapsed;
+    }
+}
@@ -1,76 +1,99 @@
 import java.util.List;
 
-abstract class Stmt {
+// Generated by GenerateAst. Edit the node list there, not this file.
+abstract sealed class Stmt {
   interface Visitor<R> {
-    R visitExpressionStmt(Expression stmt);
-    R visitPrintStmt(Print stmt);
-    R visitVarStmt(Var stmt);
-    R visitBlockStmt(Block stmt);
-    R visitIfStmt(If stmt);
-    R visitTernaryStmt(Stmt.Ternary stmt);
-    R visitWhileStmt(Stmt.While stmt);
+    R visitBlockStmt(Stmt.Block stmt);
     R visitDoWhileStmt(Stmt.DoWhile stmt);
+    R visitExpressionStmt(Stmt.Expression stmt);
     R visitFunctionStmt(Stmt.Function stmt);
+    R visitIfStmt(Stmt.If stmt);
+    R visitImportStmt(Stmt.Import stmt);
+    R visitPrintStmt(Stmt.Print stmt);
     R visitReturnStmt(Stmt.Return stmt);
+    R visitTernaryStmt(Stmt.Ternary stmt);
+    R visitVarStmt(Stmt.Var stmt);
+    R visitWhileStmt(Stmt.While stmt);
   }
 
-  static class Expression extends Stmt {
-    Expression(Expr expression) {
-      this.expression = expression;
+  static final class Block extends Stmt {
+    Block(List<Stmt> statements) {
+      this.statements = statements;
     }
 
-      @Override
-      <R > R accept(Visitor < R > visitor) {
-        return visitor.visitExpressionStmt(this);
-      }
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBlockStmt(this);
+    }
+
+    final List<Stmt> statements;
 
-      final Expr expression;
+    // Filled in by EscapeAnalysis the first time the block runs.
+    Boolean mayEscape;
+    int frameSlot;
   }
 
-  static class Ternary extends Stmt {
-    Ternary(Expr condition, Stmt ifTrue, Stmt ifFalse) {
+  static final class DoWhile extends Stmt {
+    DoWhile(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
-      this.ifTrue = ifTrue;
-      this.ifFalse = ifFalse;
+      this.body = body;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitTernaryStmt(this);
+      return visitor.visitDoWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
-    final Stmt ifTrue;
-    final Stmt ifFalse;
+    final Stmt body;
+
+    // Cleared each time the loop starts.
+    List<Expr.Hoisted> hoisted;
   }
 
-  static class Block extends Stmt {
-    Block(List<Stmt> statements) {
-      this.statements = statements;
+  static final class Expression extends Stmt {
+    Expression(Expr expression) {
+      this.expression = expression;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitBlockStmt(this);
+      return visitor.visitExpressionStmt(this);
     }
 
-    final List<Stmt> statements;
+    final Expr expression;
   }
 
-  static class Print extends Stmt {
-    Print(Expr expression) {
-      this.expression = expression;
+  static final class Function extends Stmt {
+    Function(Token name, List<Token> params, List<Stmt> body) {
+      this.name = name;
+      this.params = params;
+      this.body = body;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitPrintStmt(this);
+      return visitor.visitFunctionStmt(this);
     }
 
-    final Expr expression;
+    final Token name;
+    final List<Token> params;
+    final List<Stmt> body;
+
+    // Shared by every closure over this declaration: what it captures, how its frames are allocated, its tiered compilation state, whether Purity lets its results be cached and its code for FrameStack.
+    FreeVariables freeVariables;
+    Boolean mayEscape;
+    int frameSlot;
+    int callCount;
+    boolean compileRequested;
+    volatile CompiledFunction compiled;
+    Boolean memoizable;
+    FrameStack.Code frameCode;
   }
 
-  static class If extends Stmt {
+  static final class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
@@ -87,78 +110,102 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
 
-  static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
-      this.name = name;
-      this.initializer = initializer;
+  static final class Import extends Stmt {
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
     }
 
-      @Override
+    @Override
     <R> R accept(Visitor<R> visitor) {
-        return visitor.visitVarStmt(this);
-      }
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
 
-      final Token name;
-      final Expr initializer;
+    // Filled in by ModuleLoader before the program runs.
+    java.nio.file.Path resolved;
+  }
+
+  static final class Print extends Stmt {
+    Print(Expr expression) {
+      this.expression = expression;
     }
 
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
-      this.condition = condition;
-      this.body = body;
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitPrintStmt(this);
+    }
+
+    final Expr expression;
+  }
+
+  static final class Return extends Stmt {
+    Return(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitWhileStmt(this);
+      return visitor.visitReturnStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    final Token keyword;
+    final Expr value;
   }
 
-  static class DoWhile extends Stmt {
-    DoWhile (Expr condition, Stmt body) {
+  static final class Ternary extends Stmt {
+    Ternary(Expr condition, Stmt ifTrue, Stmt ifFalse) {
       this.condition = condition;
-      this.body = body;
+      this.ifTrue = ifTrue;
+      this.ifFalse = ifFalse;
     }
+
     @Override
-    <R> R accept(Visitor<R> visitor) {return visitor.visitDoWhileStmt(this);}
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitTernaryStmt(this);
+    }
 
     final Expr condition;
-    final Stmt body;
+    final Stmt ifTrue;
+    final Stmt ifFalse;
   }
 
-  static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+  static final class Var extends Stmt {
+    Var(Token name, Expr initializer) {
       this.name = name;
-      this.params = params;
-      this.body = body;
+      this.initializer = initializer;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitFunctionStmt(this);
+      return visitor.visitVarStmt(this);
     }
 
     final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    final Expr initializer;
   }
 
-  static class Return extends Stmt {
-    Return(Token keyword, Expr value) {
+  static final class While extends Stmt {
+    While(Token keyword, Expr condition, Stmt body) {
       this.keyword = keyword;
-      this.value = value;
+      this.condition = condition;
+      this.body = body;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitReturnStmt(this);
+      return visitor.visitWhileStmt(this);
     }
 
     final Token keyword;
-    final Expr value;
+    final Expr condition;
+    final Stmt body;
+
+    // Cleared each time the loop starts.
+    List<Expr.Hoisted> hoisted;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
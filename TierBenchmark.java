@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Measures how long a whole script takes, launch to exit, with only the
+// tree walker and with hot functions compiled after the usual 1000
+// calls. Every run is a fresh JVM, so each one pays for warming up javac
+// again, as a real run does. The modes take turns so that drift on the
+// machine hits them alike, and the first round is not counted.
+//
+//   java -cp <classes> TierBenchmark <script> [runs]
+public class TierBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: TierBenchmark <script> [runs]");
+            System.exit(64);
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = System.getProperty("java.class.path");
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("tree walker", Arrays.asList(java, "-cp", classPath,
+                "-Dlox.compileThreshold=0", "Lox", args[0]));
+        modes.put("compiled", Arrays.asList(java, "-cp", classPath,
+                "-Dlox.compileThreshold=1000", "Lox", args[0]));
+
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Map<String, long[]> times = new LinkedHashMap<>();
+        for (String mode : modes.keySet()) times.put(mode, new long[runs]);
+        for (int i = -1; i < runs; i++) {
+            for (String mode : modes.keySet()) {
+                long elapsed = run(modes.get(mode));
+                if (i >= 0) times.get(mode)[i] = elapsed;
+            }
+        }
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        for (String mode : modes.keySet()) {
+            long[] sorted = times.get(mode);
+            Arrays.sort(sorted);
+            System.out.printf("%s: median %.0f ms, min %.0f ms, max %.0f ms over %d runs%n",
+                    mode, sorted[runs / 2] / 1e6, sorted[0] / 1e6,
+                    sorted[runs - 1] / 1e6, runs);
+        }
+    }
+
+    private static long run(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        process.waitFor();
+        return System.nanoTime() - start;
+    }
+}
@@ -15,7 +15,7 @@ enum TokenType {
 
     // Keywords.
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, DO,
+    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, DO, IMPORT,
 
     EOF
 }      
\ No newline at end of file